@@ -0,0 +1,51 @@
+package me.brendanweinstein.jvm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A CharSequence over a slice of ASCII bytes in a buffer, re-aimed at a new
+ * slice with set rather than copied, so text in a mapped file can go to the
+ * CharSequence validators without a String per field.
+ */
+final class AsciiSequence implements CharSequence {
+
+	private ByteBuffer mBytes;
+
+	private int mStart;
+
+	private int mLength;
+
+	/**
+	 * Views the bytes of text from start up to end.
+	 */
+	AsciiSequence set(ByteBuffer text, int start, int end) {
+		mBytes = text;
+		mStart = start;
+		mLength = end - start;
+		return this;
+	}
+
+	@Override
+	public int length() {
+		return mLength;
+	}
+
+	@Override
+	public char charAt(int index) {
+		return (char) (mBytes.get(mStart + index) & 0xFF);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return toString().substring(start, end);
+	}
+
+	@Override
+	public String toString() {
+		byte[] bytes = new byte[mLength];
+		mBytes.get(mStart, bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+}
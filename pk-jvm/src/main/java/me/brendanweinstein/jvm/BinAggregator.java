@@ -0,0 +1,432 @@
+package me.brendanweinstein.jvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import me.brendanweinstein.CardPrefixAutomaton;
+import me.brendanweinstein.CardType;
+import me.brendanweinstein.ValidateCreditCard;
+
+/**
+ * Counts card numbers by vendor, by BIN and by validity over files of card
+ * numbers, one per line, in a single pass on every core.
+ *
+ * The files are cut into chunks on line boundaries as CardFileValidator cuts
+ * them, and each chunk memory mapped and classified by a fork/join task. Each
+ * task counts into a histogram no other task is using, plain int and long
+ * arrays indexed by vendor, validity and six digit BIN, so no task waits on
+ * another and nothing is boxed. A task takes an idle histogram from the call's
+ * own pool of them and hands it back when done, so there are only as many as
+ * tasks ever ran at once, and none outlives the call; they are summed once
+ * all chunks are done.
+ *
+ * A number is classified in the same pass that reads it, by walking the
+ * prefix automaton and keeping the Luhn sum as it goes, the way
+ * ValidateCreditCard.matchCardType would classify it.
+ */
+public final class BinAggregator {
+
+	/**
+	 * What is wrong with a number, if anything. The first that applies is the
+	 * one counted.
+	 */
+	public enum Validity {
+		VALID,
+		/**
+		 * holds a character other than a digit, space or dash.
+		 */
+		MALFORMED,
+		/**
+		 * fewer than 13 digits.
+		 */
+		TOO_SHORT,
+		/**
+		 * more than 19 digits.
+		 */
+		TOO_LONG,
+		/**
+		 * not in any vendor's range for its length.
+		 */
+		UNKNOWN_RANGE,
+		/**
+		 * in a range, but with a bad check digit.
+		 */
+		BAD_CHECK_DIGIT
+	}
+
+	/**
+	 * The counts for a whole card base.
+	 */
+	public static final class Report {
+
+		private final long[] mByNetwork;
+
+		private final long[] mBinTotals;
+
+		private final long[] mBinValid;
+
+		Report(long[] byNetwork, long[] binTotals, long[] binValid) {
+			mByNetwork = byNetwork;
+			mBinTotals = binTotals;
+			mBinValid = binValid;
+		}
+
+		/**
+		 * @param network
+		 *          the vendor the number's leading digits belong to,
+		 *          UNKNOWN_CARD if none or not yet decided.
+		 */
+		public long count(CardType network, Validity validity) {
+			return mByNetwork[network.ordinal() * VALIDITIES.length + validity.ordinal()];
+		}
+
+		public long count(Validity validity) {
+			long count = 0;
+			for (CardType network : CARD_TYPES) {
+				count += count(network, validity);
+			}
+			return count;
+		}
+
+		public long total() {
+			long total = 0;
+			for (long count : mByNetwork) {
+				total += count;
+			}
+			return total;
+		}
+
+		/**
+		 * @param bin
+		 *          first six digits, 0 to 999999.
+		 *
+		 * @return how many numbers of six digits or more start with the BIN.
+		 */
+		public long binCount(int bin) {
+			return mBinTotals[bin];
+		}
+
+		/**
+		 * @return how many VALID numbers start with the BIN.
+		 */
+		public long binValidCount(int bin) {
+			return mBinValid[bin];
+		}
+
+		/**
+		 * @return up to n BINs, most common first.
+		 */
+		public int[] topBins(int n) {
+			// a min heap of the n largest seen, as parallel bin and count arrays
+			int[] bins = new int[n];
+			long[] counts = new long[n];
+			int size = 0;
+			for (int bin = 0; bin < BINS; bin++) {
+				long count = mBinTotals[bin];
+				if (count == 0 || size == n && count <= counts[0]) {
+					continue;
+				}
+				int i;
+				if (size < n) {
+					i = size++;
+					while (i > 0 && counts[(i - 1) / 2] > count) {
+						bins[i] = bins[(i - 1) / 2];
+						counts[i] = counts[(i - 1) / 2];
+						i = (i - 1) / 2;
+					}
+				} else {
+					i = 0;
+					while (true) {
+						int child = 2 * i + 1;
+						if (child >= size) {
+							break;
+						}
+						if (child + 1 < size && counts[child + 1] < counts[child]) {
+							child++;
+						}
+						if (counts[child] >= count) {
+							break;
+						}
+						bins[i] = bins[child];
+						counts[i] = counts[child];
+						i = child;
+					}
+				}
+				bins[i] = bin;
+				counts[i] = count;
+			}
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+			int[] top = new int[size];
+			for (int i = 0; i < size; i++) {
+				top[i] = bins[order[i]];
+			}
+			return top;
+		}
+
+		/**
+		 * @return a text table of counts by vendor and validity, then the 20 most
+		 *         common BINs.
+		 */
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append(String.format("%-18s", "network"));
+			for (Validity validity : VALIDITIES) {
+				report.append(String.format("%16s", validity));
+			}
+			report.append('\n');
+			for (CardType network : CARD_TYPES) {
+				long sum = 0;
+				for (Validity validity : VALIDITIES) {
+					sum += count(network, validity);
+				}
+				if (sum == 0) {
+					continue;
+				}
+				report.append(String.format("%-18s", network));
+				for (Validity validity : VALIDITIES) {
+					report.append(String.format("%16d", count(network, validity)));
+				}
+				report.append('\n');
+			}
+			report.append(String.format("%-18s%16d%n%nBIN           total           valid%n", "total", total()));
+			for (int bin : topBins(20)) {
+				report.append(String.format("%06d%16d%16d%n", bin, binCount(bin), binValidCount(bin)));
+			}
+			return report.toString();
+		}
+	}
+
+	private static final CardType[] CARD_TYPES = CardType.values();
+
+	private static final Validity[] VALIDITIES = Validity.values();
+
+	private static final int BINS = 1000000;
+
+	private BinAggregator() {
+	}
+
+	/**
+	 * Aggregates the files on the common fork/join pool.
+	 */
+	public static Report aggregate(List<Path> files) throws IOException {
+		return aggregate(files, ForkJoinPool.commonPool());
+	}
+
+	public static Report aggregate(List<Path> files, ForkJoinPool pool) throws IOException {
+		List<FileChannel> channels = new ArrayList<>();
+		try {
+			// every chunk of every file, as its file and its start and end
+			List<long[]> fileBounds = new ArrayList<>();
+			int chunks = 0;
+			for (Path file : files) {
+				FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+				channels.add(channel);
+				long[] bounds = CardFileValidator.lineBounds(channel);
+				fileBounds.add(bounds);
+				chunks += bounds.length - 1;
+			}
+			FileChannel[] chunkChannels = new FileChannel[chunks];
+			long[] starts = new long[chunks];
+			long[] ends = new long[chunks];
+			int chunk = 0;
+			for (int f = 0; f < channels.size(); f++) {
+				long[] bounds = fileBounds.get(f);
+				for (int i = 0; i + 1 < bounds.length; i++, chunk++) {
+					chunkChannels[chunk] = channels.get(f);
+					starts[chunk] = bounds[i];
+					ends[chunk] = bounds[i + 1];
+				}
+			}
+
+			ConcurrentLinkedQueue<Histogram> histograms = new ConcurrentLinkedQueue<>();
+			ChunkTask task = new ChunkTask(ValidateCreditCard.getPrefixAutomaton(), chunkChannels, starts, ends, 0, chunks, histograms);
+			pool.invoke(task);
+			if (task.mFailure != null) {
+				throw task.mFailure;
+			}
+
+			// every task has finished, so every histogram is back in the queue
+			long[] byNetwork = new long[CARD_TYPES.length * VALIDITIES.length];
+			long[] binTotals = new long[BINS];
+			long[] binValid = new long[BINS];
+			for (Histogram histogram : histograms) {
+				for (int i = 0; i < byNetwork.length; i++) {
+					byNetwork[i] += histogram.mByNetwork[i];
+				}
+				for (int bin = 0; bin < BINS; bin++) {
+					binTotals[bin] += histogram.mBinTotals[bin];
+					binValid[bin] += histogram.mBinValid[bin];
+				}
+			}
+			return new Report(byNetwork, binTotals, binValid);
+		} finally {
+			for (FileChannel channel : channels) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Counts from the chunks of one or more tasks, used by one task at a time.
+	 */
+	private static final class Histogram {
+
+		final long[] mByNetwork = new long[CARD_TYPES.length * VALIDITIES.length];
+
+		final int[] mBinTotals = new int[BINS];
+
+		final int[] mBinValid = new int[BINS];
+
+		/**
+		 * Classifies every line of a chunk.
+		 */
+		void count(CardPrefixAutomaton automaton, ByteBuffer text) {
+			int limit = text.limit();
+			int i = 0;
+			while (i < limit) {
+				int state = CardPrefixAutomaton.START;
+				int digits = 0;
+				int bin = 0;
+				int undoubled = 0;
+				int doubled = 0;
+				boolean malformed = false;
+				byte b;
+				for (; i < limit && (b = text.get(i)) != '\n'; i++) {
+					if ('0' <= b && b <= '9') {
+						int digit = b - '0';
+						int sum = doubled + digit;
+						doubled = undoubled + ValidateCreditCard.luhnDoubled(digit);
+						undoubled = sum;
+						state = automaton.next(state, digit);
+						if (digits < 6) {
+							bin = bin * 10 + digit;
+						}
+						digits++;
+					} else if (b != ' ' && b != '-' && b != '\r' && b != '\t') {
+						malformed = true;
+					}
+				}
+				i++;
+				if (digits == 0 && !malformed) {
+					// blank line
+					continue;
+				}
+				Validity validity;
+				CardType network = automaton.network(state);
+				if (malformed) {
+					validity = Validity.MALFORMED;
+					network = CardType.UNKNOWN_CARD;
+				} else if (digits < 13) {
+					validity = Validity.TOO_SHORT;
+				} else if (digits > CardPrefixAutomaton.MAX_LENGTH) {
+					validity = Validity.TOO_LONG;
+				} else if (automaton.cardType(state, digits).isError()) {
+					validity = Validity.UNKNOWN_RANGE;
+				} else if (undoubled % 10 != 0) {
+					validity = Validity.BAD_CHECK_DIGIT;
+				} else {
+					validity = Validity.VALID;
+				}
+				mByNetwork[network.ordinal() * VALIDITIES.length + validity.ordinal()]++;
+				if (digits >= 6 && !malformed) {
+					mBinTotals[bin]++;
+					if (validity == Validity.VALID) {
+						mBinValid[bin]++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Classifies chunks from to to, splitting the work in halves.
+	 */
+	private static final class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final CardPrefixAutomaton mAutomaton;
+		private final FileChannel[] mChannels;
+		private final long[] mStarts;
+		private final long[] mEnds;
+		private final int mFrom;
+		private final int mTo;
+		/**
+		 * histograms no task is using.
+		 */
+		private final ConcurrentLinkedQueue<Histogram> mHistograms;
+
+		IOException mFailure;
+
+		ChunkTask(CardPrefixAutomaton automaton, FileChannel[] channels, long[] starts, long[] ends, int from, int to,
+				ConcurrentLinkedQueue<Histogram> histograms) {
+			mAutomaton = automaton;
+			mChannels = channels;
+			mStarts = starts;
+			mEnds = ends;
+			mFrom = from;
+			mTo = to;
+			mHistograms = histograms;
+		}
+
+		@Override
+		protected void compute() {
+			if (mTo - mFrom > 1) {
+				int mid = (mFrom + mTo) >>> 1;
+				ChunkTask left = new ChunkTask(mAutomaton, mChannels, mStarts, mEnds, mFrom, mid, mHistograms);
+				ChunkTask right = new ChunkTask(mAutomaton, mChannels, mStarts, mEnds, mid, mTo, mHistograms);
+				invokeAll(left, right);
+				mFailure = left.mFailure != null ? left.mFailure : right.mFailure;
+			} else if (mTo > mFrom) {
+				try {
+					MappedByteBuffer text = mChannels[mFrom].map(FileChannel.MapMode.READ_ONLY, mStarts[mFrom],
+							mEnds[mFrom] - mStarts[mFrom]);
+					Histogram histogram = mHistograms.poll();
+					if (histogram == null) {
+						histogram = new Histogram();
+					}
+					histogram.count(mAutomaton, text);
+					mHistograms.add(histogram);
+				} catch (IOException e) {
+					mFailure = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Aggregates files of card numbers, one per line, and prints the report.
+	 *
+	 * <pre>
+	 * BinAggregator file...
+	 * </pre>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("usage: BinAggregator file...");
+			System.exit(2);
+		}
+		List<Path> files = new ArrayList<>();
+		for (String arg : args) {
+			files.add(Paths.get(arg));
+		}
+		System.out.print(aggregate(files));
+	}
+
+}
@@ -0,0 +1,410 @@
+package me.brendanweinstein.jvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import me.brendanweinstein.CardType;
+import me.brendanweinstein.CardValidation;
+import me.brendanweinstein.ExpiryValidator;
+import me.brendanweinstein.RangeSnapshot;
+import me.brendanweinstein.ValidateCreditCard;
+
+/**
+ * Validates partner card files, CSV with a card number, expiry and perhaps a
+ * CVV on each line, on every core.
+ *
+ * The file is cut into chunks on line boundaries, each chunk memory mapped and
+ * validated by a fork/join task, and the results gathered into columns: the
+ * line each row came from, its vendor and its CardValidation error bits. Fields
+ * are read in place through a reusable CharSequence, so nothing is allocated
+ * per row and the work grows with the cores given it.
+ *
+ * Fields are split on commas, with surrounding spaces and double quotes
+ * dropped; quoted commas are not supported, as card files do not need them.
+ * Blank lines are skipped but still counted, so line numbers match the file.
+ * Every row of a file is judged against the one range snapshot current when
+ * validation began, each number scanned once for both its errors and vendor.
+ */
+public final class CardFileValidator {
+
+	/**
+	 * The columns of a validated file, one entry per row.
+	 */
+	public static final class Result {
+
+		private final int[] mLines;
+
+		private final byte[] mCardTypes;
+
+		private final int[] mErrors;
+
+		Result(int[] lines, byte[] cardTypes, int[] errors) {
+			mLines = lines;
+			mCardTypes = cardTypes;
+			mErrors = errors;
+		}
+
+		public int size() {
+			return mLines.length;
+		}
+
+		/**
+		 * @return line of the file the row came from, counting from 0.
+		 */
+		public int line(int row) {
+			return mLines[row];
+		}
+
+		public CardType cardType(int row) {
+			return CARD_TYPES[mCardTypes[row]];
+		}
+
+		/**
+		 * @return CardValidation.VALID, or the error bits of the row.
+		 */
+		public int errors(int row) {
+			return mErrors[row];
+		}
+
+		/**
+		 * @return how many rows have none of the error bits in mask.
+		 */
+		public int countValid(int mask) {
+			int valid = 0;
+			for (int errors : mErrors) {
+				if ((errors & mask) == 0) {
+					valid++;
+				}
+			}
+			return valid;
+		}
+
+		/**
+		 * Writes the columns little-endian: the row count as an int, the line
+		 * numbers as ints, the CardType ordinals as bytes, then the error bits as
+		 * ints.
+		 */
+		public void writeTo(Path file) throws IOException {
+			try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+				buffer.putInt(size());
+				for (int line : mLines) {
+					buffer = drainIfFull(out, buffer, 4);
+					buffer.putInt(line);
+				}
+				for (byte cardType : mCardTypes) {
+					buffer = drainIfFull(out, buffer, 1);
+					buffer.put(cardType);
+				}
+				for (int errors : mErrors) {
+					buffer = drainIfFull(out, buffer, 4);
+					buffer.putInt(errors);
+				}
+				drainIfFull(out, buffer, buffer.capacity());
+			}
+		}
+
+		private static ByteBuffer drainIfFull(FileChannel out, ByteBuffer buffer, int needed) throws IOException {
+			if (buffer.remaining() < needed) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				buffer.clear();
+			}
+			return buffer;
+		}
+	}
+
+	private static final CardType[] CARD_TYPES = CardType.values();
+
+	/**
+	 * bytes of file a task validates without splitting further.
+	 */
+	static final int CHUNK_SIZE = 8 << 20;
+
+	private final int mPanColumn;
+
+	private final int mExpiryColumn;
+
+	private final int mCvvColumn;
+
+	private final boolean mHeader;
+
+	/**
+	 * @param panColumn
+	 *          column of the card number, counting from 0.
+	 * @param expiryColumn
+	 *          column of the expiry, MM/YY, MMYY or MM/YYYY.
+	 * @param cvvColumn
+	 *          column of the CVV, or -1 if the file has none, in which case no
+	 *          CVV error bits are set.
+	 * @param header
+	 *          true if the first line holds column names rather than a row.
+	 */
+	public CardFileValidator(int panColumn, int expiryColumn, int cvvColumn, boolean header) {
+		mPanColumn = panColumn;
+		mExpiryColumn = expiryColumn;
+		mCvvColumn = cvvColumn;
+		mHeader = header;
+	}
+
+	/**
+	 * Validates the file on the common fork/join pool against the current month.
+	 */
+	public Result validate(Path file) throws IOException {
+		return validate(file, ForkJoinPool.commonPool(), ExpiryValidator.getDefault().currentYymm());
+	}
+
+	/**
+	 * @param nowYymm
+	 *          month to judge expiry against, see CardValidation.toYymm.
+	 */
+	public Result validate(Path file, ForkJoinPool pool, int nowYymm) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long[] bounds = lineBounds(channel);
+			Chunk[] chunks = new Chunk[bounds.length - 1];
+			pool.invoke(new ChunkTask(channel, bounds, chunks, 0, chunks.length, ValidateCreditCard.getSnapshot(), nowYymm));
+			int rows = 0;
+			for (Chunk chunk : chunks) {
+				if (chunk.mFailure != null) {
+					throw chunk.mFailure;
+				}
+				rows += chunk.mRows;
+			}
+			int[] lines = new int[rows];
+			byte[] cardTypes = new byte[rows];
+			int[] errors = new int[rows];
+			int row = 0;
+			int firstLine = 0;
+			for (Chunk chunk : chunks) {
+				for (int i = 0; i < chunk.mRows; i++) {
+					lines[row + i] = firstLine + chunk.mLines[i];
+				}
+				System.arraycopy(chunk.mCardTypes, 0, cardTypes, row, chunk.mRows);
+				System.arraycopy(chunk.mErrors, 0, errors, row, chunk.mRows);
+				row += chunk.mRows;
+				firstLine += chunk.mLineCount;
+			}
+			return new Result(lines, cardTypes, errors);
+		}
+	}
+
+	/**
+	 * @return offsets where chunks of about CHUNK_SIZE bytes start, each just past
+	 *         a newline, ending with the file size.
+	 */
+	static long[] lineBounds(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long[] bounds = new long[(int) (size / CHUNK_SIZE) + 2];
+		int count = 1;
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		long start = 0;
+		while (start + CHUNK_SIZE < size) {
+			// the chunk ends after the first newline at or past CHUNK_SIZE
+			long end = -1;
+			for (long at = start + CHUNK_SIZE; end < 0 && at < size; at += probe.capacity()) {
+				probe.clear();
+				channel.read(probe, at);
+				for (int i = 0; i < probe.position(); i++) {
+					if (probe.get(i) == '\n') {
+						end = at + i + 1;
+						break;
+					}
+				}
+			}
+			if (end < 0 || end >= size) {
+				break;
+			}
+			bounds[count++] = start = end;
+		}
+		bounds[count++] = size;
+		return Arrays.copyOf(bounds, size == 0 ? 1 : count);
+	}
+
+	/**
+	 * Validates chunks from to to of the file, splitting the work in halves.
+	 */
+	private final class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel mChannel;
+		private final long[] mBounds;
+		private final Chunk[] mChunks;
+		private final int mFrom;
+		private final int mTo;
+		private final RangeSnapshot mSnapshot;
+		private final int mNowYymm;
+
+		ChunkTask(FileChannel channel, long[] bounds, Chunk[] chunks, int from, int to, RangeSnapshot snapshot, int nowYymm) {
+			mChannel = channel;
+			mBounds = bounds;
+			mChunks = chunks;
+			mFrom = from;
+			mTo = to;
+			mSnapshot = snapshot;
+			mNowYymm = nowYymm;
+		}
+
+		@Override
+		protected void compute() {
+			if (mTo - mFrom > 1) {
+				int mid = (mFrom + mTo) >>> 1;
+				invokeAll(new ChunkTask(mChannel, mBounds, mChunks, mFrom, mid, mSnapshot, mNowYymm),
+						new ChunkTask(mChannel, mBounds, mChunks, mid, mTo, mSnapshot, mNowYymm));
+			} else if (mTo > mFrom) {
+				Chunk chunk = new Chunk();
+				try {
+					long start = mBounds[mFrom];
+					MappedByteBuffer text = mChannel.map(FileChannel.MapMode.READ_ONLY, start, mBounds[mFrom + 1] - start);
+					validateChunk(text, start == 0 && mHeader, mSnapshot, mNowYymm, chunk);
+				} catch (IOException e) {
+					chunk.mFailure = e;
+				}
+				mChunks[mFrom] = chunk;
+			}
+		}
+	}
+
+	/**
+	 * Validates each line of a chunk into its columns.
+	 */
+	private void validateChunk(ByteBuffer text, boolean skipFirst, RangeSnapshot snapshot, int nowYymm, Chunk chunk) {
+		AsciiSequence pan = new AsciiSequence();
+		AsciiSequence expiry = new AsciiSequence();
+		AsciiSequence cvv = new AsciiSequence();
+		int limit = text.limit();
+		int line = 0;
+		int lineStart = 0;
+		while (lineStart < limit) {
+			int lineEnd = lineStart;
+			while (lineEnd < limit && text.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			if (!(skipFirst && line == 0) && !isBlank(text, lineStart, lineEnd)) {
+				pan.set(text, 0, 0);
+				expiry.set(text, 0, 0);
+				cvv.set(text, 0, 0);
+				int column = 0;
+				int fieldStart = lineStart;
+				for (int i = lineStart; i <= lineEnd; i++) {
+					if (i == lineEnd || text.get(i) == ',') {
+						if (column == mPanColumn) {
+							setField(pan, text, fieldStart, i);
+						} else if (column == mExpiryColumn) {
+							setField(expiry, text, fieldStart, i);
+						} else if (column == mCvvColumn) {
+							setField(cvv, text, fieldStart, i);
+						}
+						column++;
+						fieldStart = i + 1;
+					}
+				}
+				long result = CardValidation.validateAndMatch(snapshot, pan, expiry, cvv, nowYymm);
+				int errors = CardValidation.errorsOf(result);
+				if (mCvvColumn < 0) {
+					errors &= ~CardValidation.CVV_ERRORS;
+				}
+				chunk.add(line, CardValidation.cardTypeOf(result), errors);
+			}
+			line++;
+			lineStart = lineEnd + 1;
+		}
+		chunk.mLineCount = line;
+	}
+
+	/**
+	 * Aims field at the bytes from start to end, less spaces, a carriage return
+	 * and a pair of double quotes around them.
+	 */
+	private static void setField(AsciiSequence field, ByteBuffer text, int start, int end) {
+		while (start < end && isTrimmed(text.get(start))) {
+			start++;
+		}
+		while (end > start && isTrimmed(text.get(end - 1))) {
+			end--;
+		}
+		if (end - start >= 2 && text.get(start) == '"' && text.get(end - 1) == '"') {
+			start++;
+			end--;
+		}
+		field.set(text, start, end);
+	}
+
+	private static boolean isTrimmed(byte b) {
+		return b == ' ' || b == '\r' || b == '\t';
+	}
+
+	private static boolean isBlank(ByteBuffer text, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (!isTrimmed(text.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The columns of one chunk, with line numbers relative to its start.
+	 */
+	private static final class Chunk {
+
+		int[] mLines = new int[1024];
+		byte[] mCardTypes = new byte[1024];
+		int[] mErrors = new int[1024];
+		int mRows;
+		int mLineCount;
+		IOException mFailure;
+
+		void add(int line, CardType cardType, int errors) {
+			if (mRows == mLines.length) {
+				mLines = Arrays.copyOf(mLines, mRows * 2);
+				mCardTypes = Arrays.copyOf(mCardTypes, mRows * 2);
+				mErrors = Arrays.copyOf(mErrors, mRows * 2);
+			}
+			mLines[mRows] = line;
+			mCardTypes[mRows] = (byte) cardType.ordinal();
+			mErrors[mRows] = errors;
+			mRows++;
+		}
+	}
+
+	/**
+	 * Validates a CSV file of card number, expiry and CVV columns, printing a
+	 * count of good rows, and writes the columns to a file if one is named.
+	 *
+	 * <pre>
+	 * CardFileValidator [-header] [-nocvv] file [columns-out]
+	 * </pre>
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean header = false;
+		boolean cvv = true;
+		int first = 0;
+		for (; first < args.length && args[first].startsWith("-"); first++) {
+			header |= args[first].equals("-header");
+			cvv &= !args[first].equals("-nocvv");
+		}
+		if (first == args.length) {
+			System.err.println("usage: CardFileValidator [-header] [-nocvv] file [columns-out]");
+			System.exit(2);
+		}
+		Result result = new CardFileValidator(0, 1, cvv ? 2 : -1, header).validate(Paths.get(args[first]));
+		System.out.println(result.countValid(~0) + " of " + result.size() + " rows valid");
+		if (first + 1 < args.length) {
+			result.writeTo(Paths.get(args[first + 1]));
+		}
+	}
+
+}
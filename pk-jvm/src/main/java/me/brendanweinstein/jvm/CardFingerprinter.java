@@ -0,0 +1,176 @@
+package me.brendanweinstein.jvm;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import me.brendanweinstein.Pan;
+
+/**
+ * Fingerprints card numbers with HMAC-SHA256 under a secret key, so the same
+ * card can be recognised again without the number being kept.
+ *
+ * A fingerprint is the first 128 bits of the MAC of the number's ASCII
+ * digits, separators dropped, written as two longs, high half first, for
+ * FingerprintSet. Each thread keeps its own initialised Mac and scratch
+ * buffers, so after a thread's first call a fingerprint costs the MAC itself
+ * and no Mac, String or array is made per number.
+ *
+ * Thread safe.
+ */
+public final class CardFingerprinter {
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private final SecretKeySpec mKey;
+
+	private final ThreadLocal<State> mState = ThreadLocal.withInitial(this::newState);
+
+	/**
+	 * @param key
+	 *          HMAC key, copied.
+	 * @throws IllegalArgumentException
+	 *           if the key is empty.
+	 */
+	public CardFingerprinter(byte[] key) {
+		if (key.length == 0) {
+			throw new IllegalArgumentException("empty fingerprint key");
+		}
+		mKey = new SecretKeySpec(key, ALGORITHM);
+	}
+
+	/**
+	 * Writes the fingerprint of the number to dst at offset and offset + 1.
+	 */
+	public void fingerprint(Pan creditCardNumber, long[] dst, int offset) {
+		State state = mState.get();
+		int length = creditCardNumber.length();
+		for (int i = 0; i < length; i++) {
+			state.mDigits[i] = (byte) ('0' + creditCardNumber.digitAt(i));
+		}
+		state.finish(length, dst, offset);
+	}
+
+	/**
+	 * Fingerprints the digits of text, skipping spaces and dashes.
+	 *
+	 * @return false, with dst left alone, if the text is not 12 to 19 digits
+	 *         with separators.
+	 */
+	public boolean fingerprint(CharSequence creditCardNumber, long[] dst, int offset) {
+		State state = mState.get();
+		int digits = 0;
+		for (int i = 0, n = creditCardNumber.length(); i < n; i++) {
+			char c = creditCardNumber.charAt(i);
+			if ('0' <= c && c <= '9') {
+				if (digits == Pan.MAX_LENGTH) {
+					return false;
+				}
+				state.mDigits[digits++] = (byte) c;
+			} else if (c != ' ' && c != '-') {
+				return false;
+			}
+		}
+		if (digits < Pan.MIN_LENGTH) {
+			return false;
+		}
+		state.finish(digits, dst, offset);
+		return true;
+	}
+
+	/**
+	 * Fingerprints fixed width records of ASCII digits, the layout
+	 * VectorLuhn.validateBatch takes. Bytes other than digits are skipped.
+	 *
+	 * @param dst
+	 *          receives the fingerprint of record i at dstOffset + 2 * i; a
+	 *          record that is not 12 to 19 digits gets 0, 0.
+	 *
+	 * @return how many records were fingerprinted.
+	 */
+	public int fingerprintBatch(byte[] records, int offset, int stride, int count, long[] dst, int dstOffset) {
+		State state = mState.get();
+		int done = 0;
+		for (int record = 0; record < count; record++) {
+			int from = offset + record * stride;
+			int digits = 0;
+			for (int i = from, end = from + stride; i < end && digits <= Pan.MAX_LENGTH; i++) {
+				byte b = records[i];
+				if ('0' <= b && b <= '9') {
+					if (digits < Pan.MAX_LENGTH) {
+						state.mDigits[digits] = b;
+					}
+					digits++;
+				}
+			}
+			int at = dstOffset + record * 2;
+			if (digits < Pan.MIN_LENGTH || digits > Pan.MAX_LENGTH) {
+				dst[at] = 0;
+				dst[at + 1] = 0;
+			} else {
+				state.finish(digits, dst, at);
+				done++;
+			}
+		}
+		return done;
+	}
+
+	private State newState() {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(mKey);
+			return new State(mac);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to have HmacSHA256
+			throw new IllegalStateException(e);
+		} catch (InvalidKeyException e) {
+			throw new IllegalArgumentException("bad fingerprint key", e);
+		}
+	}
+
+	/**
+	 * A thread's Mac and scratch buffers.
+	 */
+	private static final class State {
+
+		final Mac mMac;
+
+		final byte[] mDigits = new byte[Pan.MAX_LENGTH];
+
+		final byte[] mOut;
+
+		State(Mac mac) {
+			mMac = mac;
+			mOut = new byte[mac.getMacLength()];
+		}
+
+		/**
+		 * MACs the first length digits into dst; doFinal leaves the Mac ready for
+		 * the next number.
+		 */
+		void finish(int length, long[] dst, int offset) {
+			mMac.update(mDigits, 0, length);
+			try {
+				mMac.doFinal(mOut, 0);
+			} catch (ShortBufferException e) {
+				throw new IllegalStateException(e);
+			}
+			dst[offset] = toLong(mOut, 0);
+			dst[offset + 1] = toLong(mOut, 8);
+			Arrays.fill(mDigits, (byte) 0);
+		}
+
+		private static long toLong(byte[] bytes, int offset) {
+			long value = 0;
+			for (int i = offset; i < offset + 8; i++) {
+				value = value << 8 | (bytes[i] & 0xFF);
+			}
+			return value;
+		}
+	}
+
+}
@@ -0,0 +1,325 @@
+package me.brendanweinstein.jvm;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * FF1 format preserving encryption, NIST SP 800-38G, over strings of decimal
+ * digits, which go in and out as a long and a length so lead zeros survive.
+ *
+ * Everything that does not change between calls is worked out once: the AES
+ * key schedule lives in one initialised Cipher, and for each length the CBC-MAC
+ * of the fixed block P and of the tweak part of Q is cached, so each Feistel
+ * round costs a single AES block. Batches run their values through the rounds
+ * together, so one Cipher call encrypts a block for every value in the batch
+ * and the per call cost of the JCE is spread across them.
+ *
+ * Lengths are limited to MIN_LENGTH to MAX_LENGTH digits, which keeps the
+ * domain at the million values the standard asks for and every round value
+ * in a long. Not thread safe; use one per thread.
+ */
+public final class FF1 {
+
+	/**
+	 * shortest string, so there are at least a million of each length.
+	 */
+	public static final int MIN_LENGTH = 6;
+
+	public static final int MAX_LENGTH = 18;
+
+	private static final int RADIX = 10;
+
+	private static final int ROUNDS = 10;
+
+	/**
+	 * values taken through the rounds together.
+	 */
+	private static final int BATCH = 256;
+
+	private static final long[] POWERS_OF_TEN = new long[MAX_LENGTH + 1];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * RADIX;
+		}
+	}
+
+	/**
+	 * b, the bytes NUM of a v digit half takes, by v: ceil(ceil(v * log2(10)) / 8).
+	 */
+	private static final int[] NUM_BYTES = new int[MAX_LENGTH + 1];
+
+	static {
+		for (int v = 0; v < NUM_BYTES.length; v++) {
+			// 10^v needs bits enough for 10^v - 1, the largest half
+			int bits = 64 - Long.numberOfLeadingZeros(POWERS_OF_TEN[v] - 1);
+			NUM_BYTES[v] = (bits + 7) / 8;
+		}
+	}
+
+	/**
+	 * floor((2^64 - 1) / 10^m) by m, to take y mod 10^m with a multiply.
+	 */
+	private static final long[] RECIPROCALS = new long[MAX_LENGTH + 1];
+
+	static {
+		for (int m = 1; m < RECIPROCALS.length; m++) {
+			RECIPROCALS[m] = Long.divideUnsigned(-1L, POWERS_OF_TEN[m]);
+		}
+	}
+
+	private final Cipher mCipher;
+
+	private final byte[] mTweak;
+
+	/**
+	 * by length: CBC-MAC state after P and all of Q but its last block, xored
+	 * with the constant bytes of that last block, as two longs; 0, 0 until
+	 * first needed.
+	 */
+	private final long[] mPrefixes = new long[(MAX_LENGTH + 1) * 2];
+
+	private final byte[] mIn = new byte[BATCH * 16];
+
+	private final ByteBuffer mInView = ByteBuffer.wrap(mIn);
+
+	private final byte[] mOut = new byte[BATCH * 16];
+
+	private final ByteBuffer mOutView = ByteBuffer.wrap(mOut);
+
+	private final long[] mA = new long[BATCH];
+
+	private final long[] mB = new long[BATCH];
+
+	private final long[] mValues = new long[BATCH];
+
+	private final int[] mLengths = new int[BATCH];
+
+	/**
+	 * @param key
+	 *          AES key of 16, 24 or 32 bytes.
+	 * @param tweak
+	 *          tweak for every string this instance encrypts, may be empty.
+	 * @throws IllegalArgumentException
+	 *           if the key is not a usable AES key.
+	 */
+	public FF1(byte[] key, byte[] tweak) {
+		try {
+			mCipher = Cipher.getInstance("AES/ECB/NoPadding");
+			mCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+		} catch (InvalidKeyException e) {
+			throw new IllegalArgumentException("bad AES key", e);
+		} catch (GeneralSecurityException e) {
+			// every Java platform is required to have AES/ECB/NoPadding
+			throw new IllegalStateException(e);
+		}
+		mTweak = tweak.clone();
+	}
+
+	/**
+	 * @param digits
+	 *          the string as a number, below 10^length.
+	 * @param length
+	 *          digits in the string, MIN_LENGTH to MAX_LENGTH.
+	 *
+	 * @return the encrypted string of the same length, as a number.
+	 */
+	public long encrypt(long digits, int length) {
+		mValues[0] = check(digits, length);
+		mLengths[0] = length;
+		crypt(true, mValues, mLengths, 1);
+		return mValues[0];
+	}
+
+	/**
+	 * @see #encrypt(long, int)
+	 */
+	public long decrypt(long digits, int length) {
+		mValues[0] = check(digits, length);
+		mLengths[0] = length;
+		crypt(false, mValues, mLengths, 1);
+		return mValues[0];
+	}
+
+	/**
+	 * Encrypts count strings of the same length from src at offset into dst at
+	 * the same offset. src and dst may be the same array.
+	 */
+	public void encrypt(long[] src, int offset, int count, int length, long[] dst) {
+		cryptAll(true, src, offset, count, length, dst);
+	}
+
+	/**
+	 * @see #encrypt(long[], int, int, int, long[])
+	 */
+	public void decrypt(long[] src, int offset, int count, int length, long[] dst) {
+		cryptAll(false, src, offset, count, length, dst);
+	}
+
+	private void cryptAll(boolean encrypt, long[] src, int offset, int count, int length, long[] dst) {
+		for (int done = 0; done < count; done += BATCH) {
+			int n = Math.min(BATCH, count - done);
+			for (int i = 0; i < n; i++) {
+				mValues[i] = check(src[offset + done + i], length);
+				mLengths[i] = length;
+			}
+			crypt(encrypt, mValues, mLengths, n);
+			System.arraycopy(mValues, 0, dst, offset + done, n);
+		}
+	}
+
+	/**
+	 * Encrypts or decrypts values[0] to values[count - 1] in place, each of the
+	 * length given for it. The caller has checked them.
+	 */
+	void crypt(boolean encrypt, long[] values, int[] lengths, int count) {
+		for (int done = 0; done < count; done += BATCH) {
+			int n = Math.min(BATCH, count - done);
+			for (int j = 0; j < n; j++) {
+				long split = POWERS_OF_TEN[lengths[done + j] - lengths[done + j] / 2];
+				mA[j] = values[done + j] / split;
+				mB[j] = values[done + j] % split;
+			}
+			for (int round = 0; round < ROUNDS; round++) {
+				round(encrypt, encrypt ? round : ROUNDS - 1 - round, lengths, done, n);
+			}
+			for (int j = 0; j < n; j++) {
+				values[done + j] = mA[j] * POWERS_OF_TEN[lengths[done + j] - lengths[done + j] / 2] + mB[j];
+			}
+		}
+	}
+
+	/**
+	 * One Feistel round for the values in mA and mB, whose lengths start at
+	 * lengths[offset].
+	 */
+	private void round(boolean encrypt, int i, int[] lengths, int offset, int count) {
+		for (int j = 0; j < count; j++) {
+			int length = lengths[offset + j];
+			int b = NUM_BYTES[length - length / 2];
+			if (mPrefixes[length * 2] == 0 && mPrefixes[length * 2 + 1] == 0) {
+				computePrefix(length);
+			}
+			// Q ends with the round number and NUM(B), or NUM(A) going backwards,
+			// which fit in the low long of its last block
+			long x = encrypt ? mB[j] : mA[j];
+			mInView.putLong(j * 16, mPrefixes[length * 2]);
+			mInView.putLong(j * 16 + 8, mPrefixes[length * 2 + 1] ^ (long) i << (8 * b) ^ x);
+		}
+		aes(mIn, mOut, count * 16);
+		for (int j = 0; j < count; j++) {
+			int length = lengths[offset + j];
+			int u = length / 2;
+			int m = (i & 1) == 0 ? u : length - u;
+			long modulus = POWERS_OF_TEN[m];
+			// d is 8 for strings this short, so y is the first 8 bytes of R
+			long y = remainder(mOutView.getLong(j * 16), modulus, RECIPROCALS[m]);
+			if (encrypt) {
+				long c = mA[j] + y;
+				mA[j] = mB[j];
+				mB[j] = c >= modulus ? c - modulus : c;
+			} else {
+				long c = mB[j] - y;
+				mB[j] = mA[j];
+				mA[j] = c < 0 ? c + modulus : c;
+			}
+		}
+	}
+
+	/**
+	 * Works out and caches the start of the PRF input for strings of the
+	 * length.
+	 */
+	private void computePrefix(int length) {
+		int u = length / 2;
+		int b = NUM_BYTES[length - u];
+		int t = mTweak.length;
+		byte[] p = { 1, 2, 1, 0, 0, RADIX, 10, (byte) u, (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8),
+				(byte) length, (byte) (t >>> 24), (byte) (t >>> 16), (byte) (t >>> 8), (byte) t };
+		// Q is the tweak, zeros to a whole number of blocks, the round and
+		// NUM(B); only the last two are left zero here
+		int qLength = t + Math.floorMod(-t - b - 1, 16) + 1 + b;
+		byte[] q = new byte[qLength];
+		System.arraycopy(mTweak, 0, q, 0, t);
+		byte[] y = new byte[16];
+		aes(p, y, 16);
+		for (int block = 0; block + 16 < qLength; block += 16) {
+			for (int k = 0; k < 16; k++) {
+				y[k] ^= q[block + k];
+			}
+			aes(y, y, 16);
+		}
+		for (int k = 0; k < 16; k++) {
+			y[k] ^= q[qLength - 16 + k];
+		}
+		ByteBuffer prefix = ByteBuffer.wrap(y);
+		mPrefixes[length * 2] = prefix.getLong(0);
+		mPrefixes[length * 2 + 1] = prefix.getLong(8);
+	}
+
+	/**
+	 * @return y mod modulus, y taken as unsigned.
+	 */
+	private static long remainder(long y, long modulus, long reciprocal) {
+		// halve y so it is positive, estimate the quotient from the reciprocal,
+		// which is at most one short, then put back the halved bit
+		long half = y >>> 1;
+		long r = half - Math.multiplyHigh(half, reciprocal) * modulus;
+		if (r >= modulus) {
+			r -= modulus;
+		}
+		r = 2 * r + (y & 1);
+		return r >= modulus ? r - modulus : r;
+	}
+
+	private void aes(byte[] in, byte[] out, int length) {
+		try {
+			mCipher.update(in, 0, length, out, 0);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long check(long digits, int length) {
+		if (length < MIN_LENGTH || length > MAX_LENGTH || digits < 0 || digits >= POWERS_OF_TEN[length]) {
+			throw new IllegalArgumentException(digits + " is not a string of " + length + " digits FF1 can take");
+		}
+		return digits;
+	}
+
+	/**
+	 * Runs the AES-128 radix 10 samples of NIST's FF1 examples.
+	 */
+	public static void main(String[] args) {
+		String[][] samples = {
+				// key, tweak, plaintext, ciphertext
+				{ "2B7E151628AED2A6ABF7158809CF4F3C", "", "0123456789", "2433477484" },
+				{ "2B7E151628AED2A6ABF7158809CF4F3C", "39383736353433323130", "0123456789", "6124200773" } };
+		boolean passed = true;
+		for (String[] sample : samples) {
+			FF1 ff1 = new FF1(hex(sample[0]), hex(sample[1]));
+			int length = sample[2].length();
+			long cipherText = ff1.encrypt(Long.parseLong(sample[2]), length);
+			long plainText = ff1.decrypt(cipherText, length);
+			boolean ok = cipherText == Long.parseLong(sample[3]) && plainText == Long.parseLong(sample[2]);
+			passed &= ok;
+			System.out.println((ok ? "PASS " : "FAIL ") + sample[0].length() * 4 + " bit key, tweak '" + sample[1] + "': "
+					+ String.format("%0" + length + "d", cipherText));
+		}
+		System.exit(passed ? 0 : 1);
+	}
+
+	private static byte[] hex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,160 @@
+package me.brendanweinstein.jvm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A set of 128 bit card fingerprints held off the Java heap, for spotting the
+ * same card seen twice across tens of millions.
+ *
+ * Fingerprints sit as pairs of longs in an open addressing table in a direct
+ * buffer, probed linearly and indexed by the high half, which being MAC output
+ * is already uniformly spread. Nothing is allocated per fingerprint, and the
+ * garbage collector never has to trace the table. The table doubles when three
+ * quarters full, up to MAX_SIZE.
+ *
+ * Not thread safe.
+ */
+public final class FingerprintSet {
+
+	/**
+	 * most fingerprints a set can hold, so its table fits one buffer.
+	 */
+	public static final int MAX_SIZE = 3 << 24;
+
+	private static final int SLOT_SIZE = 16;
+
+	private static final int MAX_SLOTS = 1 << 26;
+
+	private ByteBuffer mTable;
+
+	private int mMask;
+
+	private int mSize;
+
+	/**
+	 * 0, 0 marks an empty slot, so that fingerprint is kept aside.
+	 */
+	private boolean mHasZero;
+
+	/**
+	 * @param expected
+	 *          how many fingerprints the set should hold before it grows.
+	 */
+	public FingerprintSet(int expected) {
+		if (expected < 0 || expected > MAX_SIZE) {
+			throw new IllegalArgumentException("bad fingerprint set size " + expected);
+		}
+		int slots = 16;
+		while (slots < MAX_SLOTS && slots - (slots >>> 2) < expected) {
+			slots <<= 1;
+		}
+		allocate(slots);
+	}
+
+	/**
+	 * @return number of fingerprints in the set.
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return true if the fingerprint was not already in the set.
+	 * @throws IllegalStateException
+	 *           if the set already holds MAX_SIZE fingerprints.
+	 */
+	public boolean add(long high, long low) {
+		if (high == 0 && low == 0) {
+			if (mHasZero) {
+				return false;
+			}
+			mHasZero = true;
+			mSize++;
+			return true;
+		}
+		int slot = find(high, low);
+		if (slot >= 0) {
+			return false;
+		}
+		if (mSize == MAX_SIZE) {
+			throw new IllegalStateException("fingerprint set full");
+		}
+		int offset = ~slot * SLOT_SIZE;
+		mTable.putLong(offset, high);
+		mTable.putLong(offset + 8, low);
+		mSize++;
+		int slots = mMask + 1;
+		if (mSize > slots - (slots >>> 2) && slots < MAX_SLOTS) {
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the fingerprint at fingerprints[offset], as written by
+	 * CardFingerprinter.
+	 *
+	 * @see #add(long, long)
+	 */
+	public boolean add(long[] fingerprints, int offset) {
+		return add(fingerprints[offset], fingerprints[offset + 1]);
+	}
+
+	public boolean contains(long high, long low) {
+		if (high == 0 && low == 0) {
+			return mHasZero;
+		}
+		return find(high, low) >= 0;
+	}
+
+	/**
+	 * Empties the set, keeping its table.
+	 */
+	public void clear() {
+		for (int offset = 0, end = mTable.capacity(); offset < end; offset += 8) {
+			mTable.putLong(offset, 0);
+		}
+		mSize = 0;
+		mHasZero = false;
+	}
+
+	/**
+	 * @return the slot holding the fingerprint, or ~slot of the empty slot where
+	 *         it would go.
+	 */
+	private int find(long high, long low) {
+		for (int slot = (int) high & mMask;; slot = (slot + 1) & mMask) {
+			int offset = slot * SLOT_SIZE;
+			long slotHigh = mTable.getLong(offset);
+			long slotLow = mTable.getLong(offset + 8);
+			if (slotHigh == high && slotLow == low) {
+				return slot;
+			}
+			if (slotHigh == 0 && slotLow == 0) {
+				return ~slot;
+			}
+		}
+	}
+
+	private void allocate(int slots) {
+		// a direct buffer starts out zeroed, every slot empty
+		mTable = ByteBuffer.allocateDirect(slots * SLOT_SIZE).order(ByteOrder.nativeOrder());
+		mMask = slots - 1;
+	}
+
+	private void grow() {
+		ByteBuffer old = mTable;
+		allocate((mMask + 1) * 2);
+		for (int offset = 0, end = old.capacity(); offset < end; offset += SLOT_SIZE) {
+			long high = old.getLong(offset);
+			long low = old.getLong(offset + 8);
+			if (high != 0 || low != 0) {
+				int offsetNew = ~find(high, low) * SLOT_SIZE;
+				mTable.putLong(offsetNew, high);
+				mTable.putLong(offsetNew + 8, low);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+package me.brendanweinstein.jvm;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import me.brendanweinstein.CardType;
+import me.brendanweinstein.PanFinder;
+
+/**
+ * Scans files, typically application logs, for card numbers that should not be
+ * there, on every core at once.
+ *
+ * Each file is memory mapped a chunk at a time and the chunks handed to a
+ * thread pool, each worker running a PanFinder over its chunk. A chunk is
+ * mapped a little past its end so that a number straddling the boundary is
+ * read whole by the chunk it starts in and skipped by the next. Only a run of
+ * digits and separators longer than that overlap can lose a number at a chunk
+ * boundary.
+ *
+ * What is found is reported by offset and vendor only; the digits themselves
+ * are never copied out of the file.
+ */
+public final class PanLeakScanner {
+
+	/**
+	 * A card number found in a file.
+	 */
+	public static final class Leak {
+
+		public final Path file;
+
+		/**
+		 * offset of the first digit.
+		 */
+		public final long start;
+
+		/**
+		 * offset just past the last digit.
+		 */
+		public final long end;
+
+		public final CardType cardType;
+
+		Leak(Path file, long start, long end, CardType cardType) {
+			this.file = file;
+			this.start = start;
+			this.end = end;
+			this.cardType = cardType;
+		}
+
+		@Override
+		public String toString() {
+			return file + ":" + start + "-" + end + " " + cardType;
+		}
+	}
+
+	public static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+
+	/**
+	 * bytes mapped past the end of a chunk to finish a run under way there.
+	 */
+	private static final int OVERLAP = 64 << 10;
+
+	private final int mThreads;
+
+	private final int mChunkSize;
+
+	/**
+	 * Scanner using every core and DEFAULT_CHUNK_SIZE chunks.
+	 */
+	public PanLeakScanner() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param threads
+	 *          workers to scan with.
+	 * @param chunkSize
+	 *          bytes of a file each task scans, at most 1GB. Several chunks per
+	 *          thread keep the cores evenly busy.
+	 */
+	public PanLeakScanner(int threads, int chunkSize) {
+		if (threads <= 0 || chunkSize <= 0 || chunkSize > 1 << 30) {
+			throw new IllegalArgumentException("bad scanner: threads " + threads + ", chunk size " + chunkSize);
+		}
+		mThreads = threads;
+		mChunkSize = chunkSize;
+	}
+
+	/**
+	 * @return every card number found in the files, in file order and then
+	 *         offset order.
+	 */
+	public List<Leak> scan(List<Path> files) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(mThreads);
+		try {
+			List<Future<List<Leak>>> chunks = new ArrayList<>();
+			for (Path file : files) {
+				long size = Files.size(file);
+				for (long start = 0; start < size; start += mChunkSize) {
+					long chunkStart = start;
+					chunks.add(pool.submit(() -> scanChunk(file, chunkStart, size)));
+				}
+			}
+			List<Leak> leaks = new ArrayList<>();
+			for (Future<List<Leak>> chunk : chunks) {
+				leaks.addAll(chunk.get());
+			}
+			return leaks;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("scan interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("scan failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Finds the numbers starting in one chunk of a file.
+	 */
+	private List<Leak> scanChunk(Path file, long start, long size) throws IOException {
+		List<Leak> leaks = new ArrayList<>();
+		findInChunk(new PanFinder(), file, start, mChunkSize, size,
+				(panStart, panEnd, cardType) -> leaks.add(new Leak(file, panStart, panEnd, cardType)));
+		return leaks;
+	}
+
+	/**
+	 * Maps the chunk of a file starting at start, with a little either side,
+	 * and runs the finder over it. Offsets reported are offsets in the file.
+	 *
+	 * @return how many card numbers were found.
+	 */
+	static int findInChunk(PanFinder finder, Path file, long start, int chunkSize, long size, PanFinder.Listener listener)
+			throws IOException {
+		int length = (int) Math.min(chunkSize, size - start);
+		// two bytes before the chunk tell the finder whether a run is under way
+		int from = (int) Math.min(2, start);
+		long mapStart = start - from;
+		int mapped = (int) Math.min((long) from + length + OVERLAP, size - mapStart);
+		// the mapping stays valid once the channel is closed
+		MappedByteBuffer text;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			text = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapped);
+		}
+		return finder.find(text, from, from + length, text.limit(), mapStart, listener);
+	}
+
+	/**
+	 * Scans files, and directories recursively, printing each leak found as
+	 * path:start-end VENDOR. Exits 1 if anything was found.
+	 *
+	 * <pre>
+	 * PanLeakScanner [-t threads] path...
+	 * </pre>
+	 */
+	public static void main(String[] args) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int first = 0;
+		if (args.length > 1 && args[0].equals("-t")) {
+			threads = Integer.parseInt(args[1]);
+			first = 2;
+		}
+		if (first == args.length) {
+			System.err.println("usage: PanLeakScanner [-t threads] path...");
+			System.exit(2);
+		}
+		List<Path> files = new ArrayList<>();
+		for (int i = first; i < args.length; i++) {
+			try (Stream<Path> paths = Files.walk(Paths.get(args[i]))) {
+				paths.filter(Files::isRegularFile).sorted().forEach(files::add);
+			}
+		}
+		List<Leak> leaks = new PanLeakScanner(threads, DEFAULT_CHUNK_SIZE).scan(files);
+		for (Leak leak : leaks) {
+			System.out.println(leak);
+		}
+		System.exit(leaks.isEmpty() ? 0 : 1);
+	}
+
+}
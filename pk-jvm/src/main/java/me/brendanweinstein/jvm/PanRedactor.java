@@ -0,0 +1,193 @@
+package me.brendanweinstein.jvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import me.brendanweinstein.CardType;
+import me.brendanweinstein.PanFinder;
+import me.brendanweinstein.PanMasker;
+
+/**
+ * Copies a file with every card number in it masked to its first six and last
+ * four digits, e.g. "4111 11** **** 1111", so the copy keeps the layout and
+ * length of the original.
+ *
+ * Chunks of the source are scanned ahead on a thread pool the way
+ * PanLeakScanner scans them, and the results applied in file order. The bytes
+ * between card numbers go from source to target with FileChannel.transferTo,
+ * which the OS can do without passing them through the JVM; only the few
+ * bytes of each card number are read, masked and written. Memory use depends
+ * on the chunk size and thread count, never on the file size.
+ */
+public final class PanRedactor {
+
+	/**
+	 * most bytes a card number found can span, 19 digits and a separator between
+	 * each pair.
+	 */
+	private static final int MAX_SPAN = 37;
+
+	private final int mThreads;
+
+	private final int mChunkSize;
+
+	private final byte mMask;
+
+	/**
+	 * Redactor using every core, PanLeakScanner.DEFAULT_CHUNK_SIZE chunks and '*'
+	 * for the mask.
+	 */
+	public PanRedactor() {
+		this(Runtime.getRuntime().availableProcessors(), PanLeakScanner.DEFAULT_CHUNK_SIZE, (byte) '*');
+	}
+
+	/**
+	 * @param threads
+	 *          workers to scan with; at most twice as many chunks are scanned
+	 *          ahead of the one being written.
+	 * @param chunkSize
+	 *          bytes of the source each task scans, at most 1GB.
+	 * @param mask
+	 *          ASCII byte written over the hidden digits.
+	 */
+	public PanRedactor(int threads, int chunkSize, byte mask) {
+		if (threads <= 0 || chunkSize <= 0 || chunkSize > 1 << 30) {
+			throw new IllegalArgumentException("bad redactor: threads " + threads + ", chunk size " + chunkSize);
+		}
+		mThreads = threads;
+		mChunkSize = chunkSize;
+		mMask = mask;
+	}
+
+	/**
+	 * Writes target as a copy of source with the card numbers masked. target is
+	 * created, or truncated if it exists, and may not be source.
+	 *
+	 * @return how many card numbers were masked.
+	 */
+	public long redact(Path source, Path target) throws IOException {
+		if (Files.exists(target) && Files.isSameFile(source, target)) {
+			throw new IllegalArgumentException("cannot redact " + source + " onto itself");
+		}
+		long size = Files.size(source);
+		ExecutorService pool = Executors.newFixedThreadPool(mThreads);
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			ArrayDeque<Future<Spans>> ahead = new ArrayDeque<>();
+			long next = 0;
+			long copied = 0;
+			long masked = 0;
+			byte[] span = new byte[MAX_SPAN];
+			while (next < size || !ahead.isEmpty()) {
+				while (next < size && ahead.size() < 2 * mThreads) {
+					long chunkStart = next;
+					ahead.add(pool.submit(() -> scanChunk(source, chunkStart, size)));
+					next += mChunkSize;
+				}
+				Spans spans = ahead.remove().get();
+				for (int i = 0; i < spans.mCount; i += 2) {
+					long start = spans.mOffsets[i];
+					int length = (int) (spans.mOffsets[i + 1] - start);
+					transfer(in, copied, start - copied, out);
+					read(in, start, span, length);
+					PanMasker.maskFirst6Last4(span, 0, length, 1, mMask, span, 0);
+					write(out, span, length);
+					copied = start + length;
+				}
+				masked += spans.mCount / 2;
+			}
+			transfer(in, copied, size - copied, out);
+			return masked;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("redaction interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("redaction failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private Spans scanChunk(Path file, long start, long size) throws IOException {
+		Spans spans = new Spans();
+		PanLeakScanner.findInChunk(new PanFinder(), file, start, mChunkSize, size, spans);
+		return spans;
+	}
+
+	private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+		while (count > 0) {
+			long n = in.transferTo(position, count, out);
+			if (n <= 0) {
+				throw new IOException("source shrank while being redacted");
+			}
+			position += n;
+			count -= n;
+		}
+	}
+
+	private static void read(FileChannel in, long position, byte[] dst, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(dst, 0, length);
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("source shrank while being redacted");
+			}
+		}
+	}
+
+	private static void write(FileChannel out, byte[] src, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(src, 0, length);
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	/**
+	 * Start and end offsets of the card numbers found in a chunk, in pairs.
+	 */
+	private static final class Spans implements PanFinder.Listener {
+
+		long[] mOffsets = new long[32];
+
+		int mCount;
+
+		@Override
+		public void onPan(long start, long end, CardType cardType) {
+			if (mCount == mOffsets.length) {
+				mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+			}
+			mOffsets[mCount++] = start;
+			mOffsets[mCount++] = end;
+		}
+	}
+
+	/**
+	 * Redacts a file into another, printing how many card numbers were masked.
+	 *
+	 * <pre>
+	 * PanRedactor source target
+	 * </pre>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: PanRedactor source target");
+			System.exit(2);
+		}
+		System.out.println(new PanRedactor().redact(Paths.get(args[0]), Paths.get(args[1])) + " card numbers masked");
+	}
+
+}
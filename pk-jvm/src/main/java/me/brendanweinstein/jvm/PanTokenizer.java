@@ -0,0 +1,227 @@
+package me.brendanweinstein.jvm;
+
+import java.util.Arrays;
+
+import me.brendanweinstein.Pan;
+import me.brendanweinstein.ValidateCreditCard;
+
+/**
+ * Swaps card numbers for tokens that look like card numbers: same length, same
+ * BIN, same last four digits, and a good check digit, so anything downstream
+ * that checks numbers with ValidateCreditCard.isValid takes the tokens too.
+ *
+ * The digits between the BIN and the last four are encrypted with FF1. Since
+ * the check digit is among the last four and kept, the result passes Luhn only
+ * one time in ten; the middle is encrypted again until it does, and detokenizing
+ * decrypts until it does, which takes the walk back to where it began. Batches
+ * go through FF1 together, the numbers still walking dropping out as they
+ * land.
+ *
+ * Numbers shorter than 16 digits have too few middle digits for FF1, so they
+ * keep a shorter prefix, down to 3 digits for 13 digit numbers; that is still
+ * enough to tell the vendor. Not thread safe; use one per thread.
+ */
+public final class PanTokenizer {
+
+	private static final int KEPT_PREFIX = 6;
+
+	private static final int KEPT_SUFFIX = 4;
+
+	/**
+	 * Luhn sum of a two digit group whose tens digit is doubled.
+	 */
+	private static final int[] PAIR_SUMS = new int[100];
+
+	static {
+		for (int pair = 0; pair < 100; pair++) {
+			PAIR_SUMS[pair] = pair % 10 + ValidateCreditCard.luhnDoubled(pair / 10);
+		}
+	}
+
+	private static final long[] POWERS_OF_TEN = new long[19];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * 19 digit numbers from here on could give tokens past Long.MAX_VALUE; no
+	 * vendor issues them.
+	 */
+	private static final long TOO_BIG = 9 * POWERS_OF_TEN[18];
+
+	private final FF1 mFF1;
+
+	/**
+	 * per number of the batch: the middle digits still walking, and how many.
+	 */
+	private long[] mMiddles = new long[64];
+
+	private int[] mMiddleLengths = new int[64];
+
+	/**
+	 * the walking numbers, as index into the batch, and their middles packed
+	 * together for FF1.
+	 */
+	private int[] mWalking = new int[64];
+
+	private long[] mWork = new long[64];
+
+	private int[] mWorkLengths = new int[64];
+
+	private final long[] mOne = new long[1];
+
+	/**
+	 * @param key
+	 *          AES key of 16, 24 or 32 bytes.
+	 * @param tweak
+	 *          FF1 tweak, may be empty.
+	 */
+	public PanTokenizer(byte[] key, byte[] tweak) {
+		mFF1 = new FF1(key, tweak);
+	}
+
+	/**
+	 * @param creditCardNumber
+	 *          13 to 19 digits, passing Luhn; a 19 digit number may not start
+	 *          with 9.
+	 *
+	 * @return the token.
+	 * @throws IllegalArgumentException
+	 *           if the number is too short or long or fails Luhn.
+	 */
+	public long tokenize(long creditCardNumber) {
+		mOne[0] = creditCardNumber;
+		walk(true, mOne, 0, 1, mOne);
+		return mOne[0];
+	}
+
+	/**
+	 * @return the card number the token was made from.
+	 * @throws IllegalArgumentException
+	 *           if the token is too short or long or fails Luhn.
+	 */
+	public long detokenize(long token) {
+		mOne[0] = token;
+		walk(false, mOne, 0, 1, mOne);
+		return mOne[0];
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *           if the number does not fit a long, or as for tokenize(long).
+	 */
+	public Pan tokenize(Pan creditCardNumber) {
+		return Pan.valueOf(tokenize(longValue(creditCardNumber)));
+	}
+
+	/**
+	 * @see #tokenize(Pan)
+	 */
+	public Pan detokenize(Pan token) {
+		return Pan.valueOf(detokenize(longValue(token)));
+	}
+
+	/**
+	 * Tokenizes count numbers from src at offset into dst at the same offset.
+	 * src and dst may be the same array. Every number is checked before any is
+	 * tokenized.
+	 *
+	 * @throws IllegalArgumentException
+	 *           as for tokenize(long).
+	 */
+	public void tokenize(long[] src, int offset, int count, long[] dst) {
+		walk(true, src, offset, count, dst);
+	}
+
+	/**
+	 * @see #tokenize(long[], int, int, long[])
+	 */
+	public void detokenize(long[] src, int offset, int count, long[] dst) {
+		walk(false, src, offset, count, dst);
+	}
+
+	/**
+	 * Cycle walks the middles of count numbers through FF1 until each number
+	 * passes Luhn again.
+	 */
+	private void walk(boolean encrypt, long[] src, int offset, int count, long[] dst) {
+		if (mMiddles.length < count) {
+			int size = Math.max(count, mMiddles.length * 2);
+			mMiddles = new long[size];
+			mMiddleLengths = new int[size];
+			mWalking = new int[size];
+			mWork = Arrays.copyOf(mWork, size);
+			mWorkLengths = Arrays.copyOf(mWorkLengths, size);
+		}
+		for (int i = 0; i < count; i++) {
+			long number = src[offset + i];
+			int length = length(number);
+			if (length < 13 || number >= TOO_BIG || !isLuhnValid(number)) {
+				throw new IllegalArgumentException("not a card number FF1 can tokenize: " + length + " digits");
+			}
+			int middle = middleLength(length);
+			mMiddles[i] = number / POWERS_OF_TEN[KEPT_SUFFIX] % POWERS_OF_TEN[middle];
+			mMiddleLengths[i] = middle;
+			mWalking[i] = i;
+		}
+		for (int i = 0; i < count; i++) {
+			dst[offset + i] = src[offset + i];
+		}
+		int walking = count;
+		while (walking > 0) {
+			for (int k = 0; k < walking; k++) {
+				mWork[k] = mMiddles[mWalking[k]];
+				mWorkLengths[k] = mMiddleLengths[mWalking[k]];
+			}
+			mFF1.crypt(encrypt, mWork, mWorkLengths, walking);
+			int stillWalking = 0;
+			for (int k = 0; k < walking; k++) {
+				int i = mWalking[k];
+				long number = dst[offset + i] + (mWork[k] - mMiddles[i]) * POWERS_OF_TEN[KEPT_SUFFIX];
+				dst[offset + i] = number;
+				mMiddles[i] = mWork[k];
+				if (!isLuhnValid(number)) {
+					mWalking[stillWalking++] = i;
+				}
+			}
+			walking = stillWalking;
+		}
+	}
+
+	/**
+	 * @return digits between the kept prefix and suffix, at least FF1.MIN_LENGTH.
+	 */
+	private static int middleLength(int length) {
+		return Math.max(FF1.MIN_LENGTH, length - KEPT_PREFIX - KEPT_SUFFIX);
+	}
+
+	private static int length(long number) {
+		int digits = 1;
+		while (digits < 19 && number >= POWERS_OF_TEN[digits]) {
+			digits++;
+		}
+		return digits;
+	}
+
+	private static boolean isLuhnValid(long number) {
+		// the check digit is undoubled, so take digits in pairs from the right
+		int sum = 0;
+		for (long rest = number; rest != 0; rest /= 100) {
+			sum += PAIR_SUMS[(int) (rest % 100)];
+		}
+		return sum % 10 == 0;
+	}
+
+	private static long longValue(Pan pan) {
+		long value = pan.longValue();
+		if (value < 0 || pan.digitAt(0) == 0) {
+			throw new IllegalArgumentException("card number does not fit a long");
+		}
+		return value;
+	}
+
+}
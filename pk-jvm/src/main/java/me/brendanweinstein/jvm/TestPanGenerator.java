@@ -0,0 +1,347 @@
+package me.brendanweinstein.jvm;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import me.brendanweinstein.CardType;
+import me.brendanweinstein.RangeTable;
+import me.brendanweinstein.ValidateCreditCard;
+
+/**
+ * Makes synthetic card numbers for load tests, valid or broken in a chosen
+ * way, drawn from the ranges of a RangeTable.
+ *
+ * A number is a random body inside a range with its check digit worked out
+ * from the body, two digits per step, rather than drawn at random and retried
+ * until it passes. Output goes to long arrays, fixed width ASCII records or a
+ * stream, with nothing allocated per number.
+ *
+ * The random source is SplitMix64, so a generator made with a given seed, table
+ * and network always produces the same numbers. A generator is not thread safe;
+ * give each thread its own, with different seeds.
+ */
+public final class TestPanGenerator {
+
+	/**
+	 * What kind of number to make.
+	 */
+	public enum Kind {
+		/**
+		 * in a range, of the range's length, with the right check digit.
+		 */
+		VALID,
+		/**
+		 * in a range, of the range's length, with a wrong check digit.
+		 */
+		BAD_CHECK_DIGIT,
+		/**
+		 * right check digit and a legal length, but in no range.
+		 */
+		UNKNOWN_PREFIX,
+		/**
+		 * valid, and among the first or last two numbers a range can hold.
+		 */
+		RANGE_BOUNDARY,
+		/**
+		 * right check digit and a range's prefix, but one digit short or long,
+		 * and so in none of the table's ranges.
+		 */
+		WRONG_LENGTH
+	}
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	/**
+	 * draws of a WRONG_LENGTH number before giving up on a table whose ranges
+	 * cover the lengths next to their own.
+	 */
+	private static final int MAX_WRONG_LENGTH_TRIES = 64;
+
+	/**
+	 * Luhn sum of a two digit number whose ones digit is doubled.
+	 */
+	private static final int[] PAIR_SUMS = new int[100];
+
+	static {
+		for (int pair = 0; pair < 100; pair++) {
+			PAIR_SUMS[pair] = ValidateCreditCard.luhnDoubled(pair % 10) + pair / 10;
+		}
+	}
+
+	private static final long[] POWERS_OF_TEN = new long[19];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private final RangeTable mRanges;
+
+	/**
+	 * per range drawn from: smallest and largest body, the number less its check
+	 * digit, that stays inside the range whatever the check digit.
+	 */
+	private final long[] mBodyLows;
+	private final long[] mBodyHighs;
+
+	private long mState;
+
+	/**
+	 * Generator over every range in the current table.
+	 */
+	public TestPanGenerator(long seed) {
+		this(ValidateCreditCard.getRanges(), null, seed);
+	}
+
+	/**
+	 * @param ranges
+	 *          table to draw numbers from, and to steer UNKNOWN_PREFIX clear of.
+	 * @param network
+	 *          only draw from this vendor's ranges, or null for all.
+	 * @param seed
+	 *          same seed, table and network, same numbers.
+	 * @throws IllegalArgumentException
+	 *           if no range of the table can hold a number for the network.
+	 */
+	public TestPanGenerator(RangeTable ranges, CardType network, long seed) {
+		mRanges = ranges;
+		int n = ranges.size();
+		long[] lows = new long[n];
+		long[] highs = new long[n];
+		int used = 0;
+		for (int i = 0; i < n; i++) {
+			long bodyLow = (ranges.low(i) + 9) / 10;
+			long bodyHigh = (ranges.high(i) - 9) / 10;
+			if ((network == null || ranges.cardType(i) == network) && bodyLow <= bodyHigh) {
+				lows[used] = bodyLow;
+				highs[used++] = bodyHigh;
+			}
+		}
+		if (used == 0) {
+			throw new IllegalArgumentException("no ranges to draw " + network + " numbers from");
+		}
+		mBodyLows = Arrays.copyOf(lows, used);
+		mBodyHighs = Arrays.copyOf(highs, used);
+		mState = seed;
+	}
+
+	/**
+	 * @return the next number of the kind. WRONG_LENGTH numbers from 19 digit
+	 *         ranges come out one digit short, so every number fits a long.
+	 */
+	public long next(Kind kind) {
+		switch (kind) {
+		case VALID:
+			return complete(randomBody(pickRange()));
+		case BAD_CHECK_DIGIT: {
+			long body = randomBody(pickRange());
+			int wrong = (checkDigit(body) + 1 + (int) bounded(9)) % 10;
+			return body * 10 + wrong;
+		}
+		case UNKNOWN_PREFIX:
+			return unknownPrefix();
+		case RANGE_BOUNDARY: {
+			int range = pickRange();
+			int step = (int) bounded(4);
+			long body = step < 2 ? mBodyLows[range] + step : mBodyHighs[range] - (step - 2);
+			return complete(Math.max(mBodyLows[range], Math.min(mBodyHighs[range], body)));
+		}
+		case WRONG_LENGTH:
+			return wrongLength();
+		default:
+			throw new IllegalArgumentException("unknown kind " + kind);
+		}
+	}
+
+	/**
+	 * Fills dst from offset with count numbers of the kind.
+	 */
+	public void fill(Kind kind, long[] dst, int offset, int count) {
+		for (int i = offset, end = offset + count; i < end; i++) {
+			dst[i] = next(kind);
+		}
+	}
+
+	/**
+	 * Fills dst with count fixed width records of ASCII digits, each left
+	 * aligned and padded with spaces to stride bytes, the layout
+	 * VectorLuhn.validateBatch and PanMasker.maskFirst6Last4 take.
+	 *
+	 * VectorLuhn only keeps a record in its vector lanes if every byte is a
+	 * digit; padded records go to ValidateCreditCard.isValid one at a time. To
+	 * load the vector path, draw from the ranges of one length, e.g. from
+	 * SortedRangeTable.ofLength(ranges, 16), and make stride that length.
+	 *
+	 * @param stride
+	 *          record width.
+	 * @throws IllegalArgumentException
+	 *           if a number drawn is longer than stride.
+	 */
+	public void fillAscii(Kind kind, byte[] dst, int offset, int count, int stride) {
+		for (int i = 0; i < count; i++) {
+			int at = offset + i * stride;
+			long number = next(kind);
+			int digits = digitCount(number);
+			if (digits > stride) {
+				throw new IllegalArgumentException("a " + digits + " digit number does not fit stride " + stride);
+			}
+			int end = writeAscii(number, dst, at);
+			Arrays.fill(dst, end, at + stride, (byte) ' ');
+		}
+	}
+
+	/**
+	 * Writes count numbers of the kind as ASCII lines. The stream is flushed but
+	 * not closed.
+	 */
+	public void write(Kind kind, long count, OutputStream out) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		int length = 0;
+		for (long i = 0; i < count; i++) {
+			if (length > buffer.length - 20) {
+				out.write(buffer, 0, length);
+				length = 0;
+			}
+			length = writeAscii(next(kind), buffer, length);
+			buffer[length++] = '\n';
+		}
+		out.write(buffer, 0, length);
+		out.flush();
+	}
+
+	/**
+	 * @return the check digit that makes body followed by it pass Luhn.
+	 */
+	public static int checkDigit(long body) {
+		// the check digit goes in an undoubled place, so body's last digit is
+		// doubled; take the digits two at a time from the right
+		int sum = 0;
+		for (long rest = body; rest != 0; rest /= 100) {
+			sum += PAIR_SUMS[(int) (rest % 100)];
+		}
+		return (10 - sum % 10) % 10;
+	}
+
+	private static long complete(long body) {
+		return body * 10 + checkDigit(body);
+	}
+
+	/**
+	 * @return index of a range. Every range is as likely as any other, whatever
+	 *         its size, so short ranges and lengths turn up as often as the 19
+	 *         digit ones that hold most numbers.
+	 */
+	private int pickRange() {
+		return (int) bounded(mBodyLows.length);
+	}
+
+	private long randomBody(int range) {
+		return mBodyLows[range] + bounded(mBodyHighs[range] - mBodyLows[range] + 1);
+	}
+
+	/**
+	 * A Luhn-valid number of a legal length that no range holds. Only the
+	 * prefix is redrawn when it lands in a range, which is rare as the ranges
+	 * leave most prefixes free.
+	 */
+	private long unknownPrefix() {
+		while (true) {
+			int length = 13 + (int) bounded(7);
+			// a 19 digit number starting with 9 would not fit a long
+			long bodyLow = POWERS_OF_TEN[length - 2];
+			long bodyHigh = length == 19 ? 899999999999999999L : POWERS_OF_TEN[length - 1] - 1;
+			long number = complete(bodyLow + bounded(bodyHigh - bodyLow + 1));
+			if (mRanges.indexOf(number) < 0) {
+				return number;
+			}
+		}
+	}
+
+	/**
+	 * A number one digit shorter or longer than its range's, redrawn while it
+	 * lands in a range of its new length, since which lengths a prefix is legal
+	 * at is up to the table.
+	 *
+	 * @throws IllegalStateException
+	 *           if the table's ranges leave no room for such numbers.
+	 */
+	private long wrongLength() {
+		for (int tries = 0; tries < MAX_WRONG_LENGTH_TRIES; tries++) {
+			long body = randomBody(pickRange());
+			boolean longer = (nextLong() & 1) == 0 && body < POWERS_OF_TEN[17];
+			long number = longer ? complete(body * 10 + bounded(10)) : complete(body / 10);
+			if (mRanges.indexOf(number) < 0) {
+				return number;
+			}
+		}
+		throw new IllegalStateException("ranges cover the lengths next to their own; no WRONG_LENGTH numbers to draw");
+	}
+
+	/**
+	 * @return a long from 0 up to bound, exclusive, near enough uniform for
+	 *         test data.
+	 */
+	private long bounded(long bound) {
+		long r = nextLong() >>> 1;
+		// floor(r * bound / 2^63) from the 128 bit product
+		return Math.multiplyHigh(r, bound) << 1 | (r * bound) >>> 63;
+	}
+
+	/**
+	 * SplitMix64.
+	 */
+	private long nextLong() {
+		long z = mState += GOLDEN_GAMMA;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static int digitCount(long number) {
+		int digits = 1;
+		while (digits < 19 && number >= POWERS_OF_TEN[digits]) {
+			digits++;
+		}
+		return digits;
+	}
+
+	/**
+	 * @return offset just past the digits written.
+	 */
+	private static int writeAscii(long number, byte[] dst, int offset) {
+		int digits = digitCount(number);
+		for (int i = offset + digits - 1; i >= offset; i--) {
+			dst[i] = (byte) ('0' + number % 10);
+			number /= 10;
+		}
+		return offset + digits;
+	}
+
+	/**
+	 * Writes numbers to standard output, one per line.
+	 *
+	 * <pre>
+	 * TestPanGenerator count [kind [network [seed]]]
+	 * </pre>
+	 *
+	 * network is a CardType name or ALL. Without a seed the output differs from
+	 * run to run.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("usage: TestPanGenerator count [kind [network [seed]]]");
+			System.exit(2);
+		}
+		long count = Long.parseLong(args[0]);
+		Kind kind = args.length > 1 ? Kind.valueOf(args[1]) : Kind.VALID;
+		CardType network = args.length > 2 && !args[2].equals("ALL") ? CardType.valueOf(args[2]) : null;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
+		TestPanGenerator generator = new TestPanGenerator(ValidateCreditCard.getRanges(), network, seed);
+		generator.write(kind, count, new BufferedOutputStream(System.out, 1 << 16));
+	}
+
+}
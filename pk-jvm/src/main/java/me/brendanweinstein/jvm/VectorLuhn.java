@@ -0,0 +1,230 @@
+package me.brendanweinstein.jvm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import me.brendanweinstein.BinTable;
+import me.brendanweinstein.CardType;
+import me.brendanweinstein.RangeTable;
+import me.brendanweinstein.SortedRangeTable;
+import me.brendanweinstein.ValidateCreditCard;
+
+/**
+ * Validates many fixed width card numbers at once with the JDK Vector API.
+ * 
+ * Each SIMD lane holds one card number. The kernel walks the digit places of a
+ * block of numbers together, gathering one byte per number, so the Luhn sum of
+ * eight numbers costs about as much as the sum of one. The leading digits of
+ * each lane are gathered into a BIN on the way, and the range check is a
+ * lookup of that BIN in a BinTable built from the ranges of numbers stride
+ * digits long. Anything that is not a plain run of digits is handed to
+ * ValidateCreditCard.isValid whole, so the result is always exactly what
+ * isValid would say.
+ * 
+ * Needs --add-modules jdk.incubator.vector at compile and run time.
+ */
+public final class VectorLuhn {
+
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_64;
+
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_256;
+
+	/**
+	 * numbers validated per block, one per lane.
+	 */
+	private static final int LANES = INTS.length();
+
+	/**
+	 * widest stride the kernel takes: sums are at most 9 per place, and the
+	 * divide by ten below only holds for sums under 1024. Wider batches go
+	 * through ValidateCreditCard.isValid.
+	 */
+	private static final int MAX_VECTOR_STRIDE = 113;
+
+	/**
+	 * shortest and longest numbers ValidateCreditCard takes.
+	 */
+	private static final int MIN_LENGTH = 13;
+	private static final int MAX_LENGTH = 19;
+
+	private static final int NO_MATCH = CardType.UNKNOWN_CARD.ordinal();
+
+	/**
+	 * by length, the BIN table for the ranges of numbers that long, built the
+	 * first time a batch of that stride comes in and again once the ranges are
+	 * republished.
+	 */
+	private static final AtomicReferenceArray<LengthBins> LENGTH_BINS = new AtomicReferenceArray<LengthBins>(MAX_LENGTH + 1);
+
+	private VectorLuhn() {
+	}
+
+	/**
+	 * Validate count ASCII card numbers, each stride bytes long, laid end to end
+	 * in digits starting at index 0.
+	 * 
+	 * @param digits
+	 *          ASCII card numbers, number i at i * stride.
+	 * @param stride
+	 *          width of every number in bytes.
+	 * @param count
+	 *          how many numbers to validate.
+	 * @param resultBits
+	 *          set to one bit per number, bit (i & 63) of word (i >>> 6) is set
+	 *          if number i is valid. Must hold at least (count + 63) / 64 words.
+	 */
+	public static void validateBatch(byte[] digits, int stride, int count, long[] resultBits) {
+		if (stride <= 0 || count < 0 || (long) stride * count > digits.length) {
+			throw new IllegalArgumentException("bad batch: stride " + stride + ", count " + count);
+		}
+		Arrays.fill(resultBits, 0, (count + 63) >>> 6, 0L);
+
+		int[] lanesOffsets = new int[LANES];
+		for (int lane = 0; lane < LANES; lane++) {
+			lanesOffsets[lane] = lane * stride;
+		}
+		IntVector zero = IntVector.zero(INTS);
+		LengthBins lengthBins = lengthBins(ValidateCreditCard.getRanges(), stride);
+		BinTable bins = lengthBins.mBins;
+		int binDigits = bins == null ? 0 : bins.getDigits();
+		int[] laneBins = new int[LANES];
+
+		int i = 0;
+		// past MAX_VECTOR_STRIDE everything goes to the scalar loop below
+		for (; stride <= MAX_VECTOR_STRIDE && i + LANES <= count; i += LANES) {
+			int base = i * stride;
+			IntVector sum = zero;
+			IntVector bin = zero;
+			VectorMask<Integer> bad = zero.compare(VectorOperators.NE, 0);
+			for (int place = 0; place < stride; place++) {
+				IntVector digit = ((IntVector) ByteVector.fromArray(BYTES, digits, base + place, lanesOffsets, 0)
+						.convertShape(VectorOperators.B2I, INTS, 0)).sub('0');
+				// anything that was not '0'..'9' is now negative or over 9
+				bad = bad.or(digit.compare(VectorOperators.UNSIGNED_GT, 9));
+				if (place < binDigits) {
+					bin = bin.mul(10).add(digit);
+				}
+				if (((stride - 1 - place) & 1) == 1) {
+					// doubled place, fold 10..18 back to 1..9
+					digit = digit.add(digit).lanewise(VectorOperators.SUB, 9, digit.compare(VectorOperators.GT, 4));
+				}
+				sum = sum.add(digit);
+			}
+			// sums are below 1024 here, where (x * 205) >>> 11 == x / 10
+			IntVector tens = sum.mul(205).lanewise(VectorOperators.LSHR, 11);
+			VectorMask<Integer> checksumOk = sum.sub(tens.mul(10)).compare(VectorOperators.EQ, 0).andNot(bad);
+
+			long valid = 0L;
+			long passed = checksumOk.toLong();
+			long fallback = bad.toLong();
+			if (bins != null) {
+				bin.intoArray(laneBins, 0);
+			}
+			for (int lane = 0; lane < LANES; lane++) {
+				int offset = base + lane * stride;
+				if ((fallback >>> lane & 1L) != 0) {
+					if (ValidateCreditCard.isValid(digits, offset, stride)) {
+						valid |= 1L << lane;
+					}
+				} else if ((passed >>> lane & 1L) != 0 && lengthBins.inRange(laneBins[lane], digits, offset, stride)) {
+					valid |= 1L << lane;
+				}
+			}
+			// LANES divides 64, so a block never straddles two words
+			resultBits[i >>> 6] |= valid << (i & 63);
+		}
+		for (; i < count; i++) {
+			if (ValidateCreditCard.isValid(digits, i * stride, stride)) {
+				resultBits[i >>> 6] |= 1L << (i & 63);
+			}
+		}
+	}
+
+	private static LengthBins lengthBins(RangeTable ranges, int length) {
+		if (length < MIN_LENGTH || length > MAX_LENGTH) {
+			return new LengthBins(ranges, null, true);
+		}
+		LengthBins lengthBins = LENGTH_BINS.get(length);
+		if (lengthBins == null || lengthBins.mRanges != ranges) {
+			lengthBins = LengthBins.build(ranges, length);
+			LENGTH_BINS.set(length, lengthBins);
+		}
+		return lengthBins;
+	}
+
+	/**
+	 * Range check by BIN for numbers of one length.
+	 */
+	private static final class LengthBins {
+
+		final RangeTable mRanges;
+
+		/**
+		 * vendor by BIN over the ranges of the length only, so any vendor means
+		 * the number is in a range; null if there are no such ranges, or they do
+		 * not all start and end on an eight digit BIN.
+		 */
+		final BinTable mBins;
+
+		/**
+		 * true if no range holds numbers of the length.
+		 */
+		final boolean mEmpty;
+
+		LengthBins(RangeTable ranges, BinTable bins, boolean empty) {
+			mRanges = ranges;
+			mBins = bins;
+			mEmpty = empty;
+		}
+
+		static LengthBins build(RangeTable ranges, int length) {
+			SortedRangeTable ofLength = SortedRangeTable.ofLength(ranges, length);
+			if (ofLength.size() == 0) {
+				return new LengthBins(ranges, null, true);
+			}
+			BinTable bins = null;
+			if (alignedTo(ofLength, length, 6)) {
+				bins = BinTable.sixDigit(ofLength);
+			} else if (alignedTo(ofLength, length, 8)) {
+				bins = BinTable.eightDigit(ofLength);
+			}
+			return new LengthBins(ranges, bins, false);
+		}
+
+		/**
+		 * @return true if every range of the table, whose numbers are all length
+		 *         digits long, holds whole BINs of binDigits digits.
+		 */
+		private static boolean alignedTo(RangeTable ranges, int length, int binDigits) {
+			long perBin = 1;
+			for (int i = binDigits; i < length; i++) {
+				perBin *= 10;
+			}
+			for (int i = 0; i < ranges.size(); i++) {
+				if (ranges.low(i) % perBin != 0 || (ranges.high(i) + 1) % perBin != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return true if the plain run of digits at offset, whose BIN is bin,
+		 *         is in a range.
+		 */
+		boolean inRange(int bin, byte[] digits, int offset, int length) {
+			if (mBins != null) {
+				return mBins.ordinal(bin) != NO_MATCH;
+			}
+			return !mEmpty && !ValidateCreditCard.matchCardType(digits, offset, length).isError();
+		}
+
+	}
+
+}
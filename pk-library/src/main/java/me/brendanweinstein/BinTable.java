@@ -0,0 +1,197 @@
+package me.brendanweinstein;
+
+import java.util.Arrays;
+
+/**
+ * Direct-indexed table from a bank identification number (the leading digits of
+ * a card number) to the vendor that issues it, for high volume network
+ * detection.
+ *
+ * A six digit table is a flat array of one byte per BIN, one million bytes in
+ * all, so a lookup is a single array read with no search and no branches. An
+ * eight digit table would need a hundred million bytes flat, so it is split in
+ * two levels on the first four digits: a block where every BIN has the same
+ * vendor is stored as that vendor alone, and only blocks that are split
+ * between vendors get a ten thousand byte leaf.
+ *
+ * Tables are derived from a RangeTable and are immutable. The vendor is
+ * found from the prefix only; the length of the number still has to be checked
+ * against the ranges.
+ */
+public final class BinTable {
+
+	private static final CardType[] CARD_TYPES = CardType.values();
+
+	private static final byte NO_MATCH = (byte) CardType.UNKNOWN_CARD.ordinal();
+
+	private static final int LEAF_SIZE = 10000;
+
+	private final RangeTable mRanges;
+
+	private final int mDigits;
+
+	/**
+	 * six digit tables: vendor ordinal by BIN. eight digit tables: the leaves,
+	 * LEAF_SIZE ordinals each.
+	 */
+	private final byte[] mOrdinals;
+
+	/**
+	 * eight digit tables only: by first four digits, the start of the block's
+	 * leaf in mOrdinals, or ~ordinal if the whole block has one vendor.
+	 */
+	private final int[] mBlocks;
+
+	private BinTable(RangeTable ranges, int digits, byte[] ordinals, int[] blocks) {
+		mRanges = ranges;
+		mDigits = digits;
+		mOrdinals = ordinals;
+		mBlocks = blocks;
+	}
+
+	/**
+	 * Build a one million entry table keyed by six digit BIN.
+	 *
+	 * Where ranges for numbers of different lengths share a BIN, the range that
+	 * sorts last wins.
+	 */
+	public static BinTable sixDigit(RangeTable ranges) {
+		byte[] ordinals = new byte[1000000];
+		Arrays.fill(ordinals, NO_MATCH);
+		int[] pieces = binRuns(ranges, 6);
+		for (int i = 0; i < pieces.length; i += 3) {
+			Arrays.fill(ordinals, pieces[i], pieces[i + 1] + 1, (byte) pieces[i + 2]);
+		}
+		return new BinTable(ranges, 6, ordinals, null);
+	}
+
+	/**
+	 * Build a two level table keyed by eight digit BIN.
+	 *
+	 * @see #sixDigit(RangeTable)
+	 */
+	public static BinTable eightDigit(RangeTable ranges) {
+		int[] blocks = new int[LEAF_SIZE];
+		Arrays.fill(blocks, ~NO_MATCH);
+		// first pass counts the blocks that need a leaf
+		boolean[] split = new boolean[LEAF_SIZE];
+		int[] pieces = binRuns(ranges, 8);
+		for (int i = 0; i < pieces.length; i += 3) {
+			int first = pieces[i];
+			int last = pieces[i + 1];
+			if (first % LEAF_SIZE != 0) {
+				split[first / LEAF_SIZE] = true;
+			}
+			if (last % LEAF_SIZE != LEAF_SIZE - 1) {
+				split[last / LEAF_SIZE] = true;
+			}
+		}
+		int leaves = 0;
+		for (int block = 0; block < LEAF_SIZE; block++) {
+			if (split[block]) {
+				blocks[block] = leaves++ * LEAF_SIZE;
+			}
+		}
+		byte[] ordinals = new byte[leaves * LEAF_SIZE];
+		Arrays.fill(ordinals, NO_MATCH);
+		for (int i = 0; i < pieces.length; i += 3) {
+			int first = pieces[i];
+			int last = pieces[i + 1];
+			byte ordinal = (byte) pieces[i + 2];
+			for (int block = first / LEAF_SIZE; block <= last / LEAF_SIZE; block++) {
+				int from = Math.max(first, block * LEAF_SIZE);
+				int to = Math.min(last, block * LEAF_SIZE + LEAF_SIZE - 1);
+				if (split[block]) {
+					int leaf = blocks[block] - block * LEAF_SIZE;
+					Arrays.fill(ordinals, leaf + from, leaf + to + 1, ordinal);
+				} else {
+					blocks[block] = ~ordinal;
+				}
+			}
+		}
+		return new BinTable(ranges, 8, ordinals, blocks);
+	}
+
+	/**
+	 * @return the range table this table was derived from.
+	 */
+	public RangeTable getRanges() {
+		return mRanges;
+	}
+
+	/**
+	 * @return 6 or 8, the number of leading digits the table is keyed by.
+	 */
+	public int getDigits() {
+		return mDigits;
+	}
+
+	/**
+	 * @param bin
+	 *          the first getDigits() digits of a card number.
+	 *
+	 * @return CardType ordinal for the BIN, UNKNOWN_CARD's if none matches.
+	 */
+	public int ordinal(int bin) {
+		if (mBlocks == null) {
+			return mOrdinals[bin];
+		}
+		int block = mBlocks[bin / LEAF_SIZE];
+		return block < 0 ? ~block : mOrdinals[block + bin % LEAF_SIZE];
+	}
+
+	/**
+	 * @param bin
+	 *          the first getDigits() digits of a card number.
+	 *
+	 * @return vendor for the BIN, or UNKNOWN_CARD if none matches.
+	 */
+	public CardType lookup(int bin) {
+		return CARD_TYPES[ordinal(bin)];
+	}
+
+	/**
+	 * Cuts each range into its parts of one length, since a BIN is the leading
+	 * digits of numbers of some one length, and a range may run from numbers of
+	 * one length into longer ones. Parts shorter than a BIN are dropped.
+	 *
+	 * @return per part: its first and last BIN and its vendor ordinal.
+	 */
+	private static int[] binRuns(RangeTable ranges, int digits) {
+		int[] runs = new int[ranges.size() * 3];
+		int size = 0;
+		for (int i = 0; i < ranges.size(); i++) {
+			long low = ranges.low(i);
+			long high = ranges.high(i);
+			for (int length = Math.max(digits, digitCount(low)); length <= digitCount(high); length++) {
+				long shortest = pow10(length - 1);
+				long longest = length >= 19 ? Long.MAX_VALUE : pow10(length) - 1;
+				long divisor = pow10(length - digits);
+				if (size + 3 > runs.length) {
+					runs = Arrays.copyOf(runs, runs.length * 2 + 3);
+				}
+				runs[size++] = (int) (Math.max(low, shortest) / divisor);
+				runs[size++] = (int) (Math.min(high, longest) / divisor);
+				runs[size++] = ranges.cardType(i).ordinal();
+			}
+		}
+		return Arrays.copyOf(runs, size);
+	}
+
+	private static int digitCount(long number) {
+		int digits = 1;
+		for (long n = number; n >= 10; n /= 10) {
+			digits++;
+		}
+		return digits;
+	}
+
+	private static long pow10(int exponent) {
+		long value = 1;
+		for (int i = 0; i < exponent; i++) {
+			value *= 10;
+		}
+		return value;
+	}
+
+}
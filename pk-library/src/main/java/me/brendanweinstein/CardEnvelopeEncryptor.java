@@ -0,0 +1,245 @@
+package me.brendanweinstein;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+
+/**
+ * Encrypts card details as entered for a server holding an RSA private key:
+ * the number, expiry and CVV go under AES-GCM with a data key of the session's
+ * own, and the data key goes along wrapped with RSA-OAEP under the server's
+ * public key.
+ *
+ * The costly parts are done once, when the encryptor is made: the data key is
+ * drawn and wrapped, the envelope header holding it is built, and the GCM
+ * Cipher is got from the provider, so an encryption is one Cipher init and a
+ * few dozen bytes of AES. Digits are read straight from the fields' text into
+ * a reused byte buffer, which is zeroed once encrypted; no String of the
+ * details is made. Make one encryptor per checkout session and drop it after.
+ *
+ * Envelope layout, big-endian:
+ *
+ * <pre>
+ * byte   FORMAT_VERSION
+ * short  wrapped key length k
+ * k x    byte data key, RSA-OAEP with SHA-256 and MGF1 with SHA-256
+ * 12 x   byte GCM nonce
+ *        AES-GCM of the fields, then its 16 byte tag
+ * </pre>
+ *
+ * The header up to the nonce is authenticated as additional data. Each field
+ * is encrypted as a byte count and its ASCII digits, with anything else in the
+ * text, such as spaces and the expiry's slash, left out. Nonces are a random
+ * four bytes fixed for the session and an eight byte count, so none repeats
+ * under a data key.
+ *
+ * The OAEP parameters are given in full rather than left to the provider,
+ * whose MGF1 digest defaults differ. GCMParameterSpec and Cipher.updateAAD
+ * arrived in Android API 19, newer than the API pk-library builds against, so
+ * both are looked up once by reflection; on older devices isSupported is false
+ * and the constructor throws. Not thread safe.
+ */
+public final class CardEnvelopeEncryptor {
+
+	public static final int FORMAT_VERSION = 1;
+
+	private static final int DATA_KEY_BITS = 256;
+
+	private static final int NONCE_SIZE = 12;
+
+	private static final int TAG_BITS = 128;
+
+	/**
+	 * most digits of the expiry, as MMYYYY, and of the CVV.
+	 */
+	private static final int MAX_EXPIRY_DIGITS = 6;
+	private static final int MAX_CVV_DIGITS = 4;
+
+	private static final OAEPParameterSpec OAEP = new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256,
+			PSource.PSpecified.DEFAULT);
+
+	private static final int MAX_PLAINTEXT = 3 + Pan.MAX_LENGTH + MAX_EXPIRY_DIGITS + MAX_CVV_DIGITS;
+
+	/**
+	 * GCMParameterSpec(int, byte[]) and Cipher.updateAAD(byte[]), or null before
+	 * API 19.
+	 */
+	private static final Constructor<?> GCM_SPEC;
+	private static final Method UPDATE_AAD;
+
+	static {
+		Constructor<?> gcmSpec = null;
+		Method updateAad = null;
+		try {
+			gcmSpec = Class.forName("javax.crypto.spec.GCMParameterSpec").getConstructor(int.class, byte[].class);
+			updateAad = Cipher.class.getMethod("updateAAD", byte[].class);
+		} catch (ClassNotFoundException e) {
+			// before API 19; isSupported is false
+		} catch (NoSuchMethodException e) {
+			// likewise
+		}
+		GCM_SPEC = gcmSpec;
+		UPDATE_AAD = gcmSpec == null ? null : updateAad;
+	}
+
+	private static KeyFactory rsaKeyFactory;
+
+	private final Cipher mCipher;
+	private final SecretKey mDataKey;
+
+	/**
+	 * everything before the nonce, the same for every envelope of the session.
+	 */
+	private final byte[] mHeader;
+
+	private final byte[] mNonce = new byte[NONCE_SIZE];
+	private long mCount;
+
+	private final byte[] mPlaintext = new byte[MAX_PLAINTEXT];
+
+	/**
+	 * @return true if the platform has the GCM API this needs, as on Android API
+	 *         19 and up and any Java 7 or later JVM.
+	 */
+	public static boolean isSupported() {
+		return UPDATE_AAD != null;
+	}
+
+	/**
+	 * Draws and wraps the session's data key.
+	 *
+	 * @param serverKey
+	 *          the server's RSA public key.
+	 * @throws GeneralSecurityException
+	 *           if the key is not an RSA key or the platform lacks AES-GCM or
+	 *           RSA-OAEP, always so when isSupported is false.
+	 */
+	public CardEnvelopeEncryptor(PublicKey serverKey) throws GeneralSecurityException {
+		if (!isSupported()) {
+			throw new NoSuchAlgorithmException("AES-GCM parameters need Android API 19");
+		}
+		SecureRandom random = new SecureRandom();
+		KeyGenerator generator = KeyGenerator.getInstance("AES");
+		generator.init(DATA_KEY_BITS, random);
+		mDataKey = generator.generateKey();
+		Cipher rsa = Cipher.getInstance("RSA/ECB/OAEPPadding");
+		rsa.init(Cipher.WRAP_MODE, serverKey, OAEP, random);
+		byte[] wrapped = rsa.wrap(mDataKey);
+		mHeader = new byte[3 + wrapped.length];
+		mHeader[0] = FORMAT_VERSION;
+		mHeader[1] = (byte) (wrapped.length >>> 8);
+		mHeader[2] = (byte) wrapped.length;
+		System.arraycopy(wrapped, 0, mHeader, 3, wrapped.length);
+		random.nextBytes(mNonce);
+		mCipher = Cipher.getInstance("AES/GCM/NoPadding");
+	}
+
+	/**
+	 * @param x509
+	 *          the server's RSA public key, X.509 SubjectPublicKeyInfo encoded.
+	 * @see #CardEnvelopeEncryptor(PublicKey)
+	 */
+	public CardEnvelopeEncryptor(byte[] x509) throws GeneralSecurityException {
+		this(rsaPublicKey(x509));
+	}
+
+	/**
+	 * Decodes an RSA public key with a KeyFactory got once and shared.
+	 */
+	public static PublicKey rsaPublicKey(byte[] x509) throws GeneralSecurityException {
+		synchronized (CardEnvelopeEncryptor.class) {
+			if (rsaKeyFactory == null) {
+				rsaKeyFactory = KeyFactory.getInstance("RSA");
+			}
+			return rsaKeyFactory.generatePublic(new X509EncodedKeySpec(x509));
+		}
+	}
+
+	/**
+	 * @param creditCardNumber
+	 *          the number as entered, e.g. the Editable of FieldHolder's card
+	 *          field.
+	 * @param expiry
+	 *          the expiry as entered, e.g. "MM/YY".
+	 * @param cvv
+	 *          the CVV as entered, or null if not asked for.
+	 *
+	 * @return the envelope.
+	 * @throws IllegalArgumentException
+	 *           if a field holds more digits than any card has.
+	 */
+	public byte[] encrypt(CharSequence creditCardNumber, CharSequence expiry, CharSequence cvv) {
+		try {
+			int length = putDigits(creditCardNumber, Pan.MAX_LENGTH, 0);
+			length = putDigits(expiry, MAX_EXPIRY_DIGITS, length);
+			length = putDigits(cvv, MAX_CVV_DIGITS, length);
+			byte[] envelope = new byte[mHeader.length + NONCE_SIZE + length + TAG_BITS / 8];
+			System.arraycopy(mHeader, 0, envelope, 0, mHeader.length);
+			nextNonce();
+			System.arraycopy(mNonce, 0, envelope, mHeader.length, NONCE_SIZE);
+			mCipher.init(Cipher.ENCRYPT_MODE, mDataKey, (AlgorithmParameterSpec) GCM_SPEC.newInstance(TAG_BITS, mNonce));
+			UPDATE_AAD.invoke(mCipher, (Object) mHeader);
+			mCipher.doFinal(mPlaintext, 0, length, envelope, mHeader.length + NONCE_SIZE);
+			return envelope;
+		} catch (GeneralSecurityException e) {
+			// the key and parameters were checked when the session began
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		} catch (InstantiationException e) {
+			throw new IllegalStateException(e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			Arrays.fill(mPlaintext, (byte) 0);
+		}
+	}
+
+	/**
+	 * Writes the digits of text to mPlaintext at offset, after their count.
+	 *
+	 * @return offset just past the last digit written.
+	 */
+	private int putDigits(CharSequence text, int maxDigits, int offset) {
+		int count = offset++;
+		int digits = 0;
+		for (int i = 0, n = text == null ? 0 : text.length(); i < n; i++) {
+			char c = text.charAt(i);
+			if ('0' <= c && c <= '9') {
+				if (++digits > maxDigits) {
+					throw new IllegalArgumentException("more than " + maxDigits + " digits");
+				}
+				mPlaintext[offset++] = (byte) c;
+			}
+		}
+		mPlaintext[count] = (byte) digits;
+		return offset;
+	}
+
+	/**
+	 * Counts up the last eight bytes of the nonce.
+	 */
+	private void nextNonce() {
+		long count = ++mCount;
+		for (int i = NONCE_SIZE - 1; i >= NONCE_SIZE - 8; i--) {
+			mNonce[i] = (byte) count;
+			count >>>= 8;
+		}
+	}
+
+}
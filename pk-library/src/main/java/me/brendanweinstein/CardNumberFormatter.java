@@ -0,0 +1,198 @@
+package me.brendanweinstein;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Groups the digits of card numbers the way each vendor prints them, 4-4-4-4
+ * for most, 4-6-5 for Amex and so on, writing straight into buffers the caller
+ * owns.
+ *
+ * The grouping for every vendor and length is worked out once, when the class
+ * loads, as a bitmask of the digits a separator follows. Formatting a number
+ * is then a copy loop with nothing allocated, whatever the destination. The
+ * text formatted need not be digits: a masked number such as "XXXX 1234" is
+ * grouped just the same given its vendor.
+ *
+ * A number shorter than its vendor's length, e.g. one still being typed, is
+ * grouped as the start of a full length number.
+ */
+public final class CardNumberFormatter {
+
+	private static final int LENGTHS = CardPrefixAutomaton.MAX_LENGTH + 1;
+
+	/**
+	 * separator bitmasks by vendor ordinal * LENGTHS + number length. Bit i set
+	 * if a separator follows digit i.
+	 */
+	private static final int[] MASKS = new int[CardType.values().length * LENGTHS];
+
+	static {
+		// numbers of unknown vendor keep the groupings toPrettyString always used,
+		// and group in fours while they are being typed
+		int[][] unknown = new int[LENGTHS][];
+		unknown[11] = new int[] { 4, 4, 4, 4 };
+		unknown[12] = new int[] { 3, 3, 3, 3 };
+		unknown[13] = new int[] { 4, 3, 3, 3 };
+		unknown[14] = new int[] { 2, 4, 4, 4 };
+		unknown[15] = new int[] { 3, 4, 4, 4 };
+		unknown[16] = new int[] { 4, 4, 4, 4 };
+		unknown[17] = new int[] { 1, 4, 4, 4, 4 };
+		unknown[18] = new int[] { 18 };
+		unknown[19] = new int[] { 4, 4, 4, 4, 3 };
+		for (CardType cardType : CardType.values()) {
+			compile(cardType, unknown);
+		}
+
+		int[][] visa = new int[LENGTHS][];
+		visa[13] = new int[] { 4, 4, 5 };
+		visa[16] = new int[] { 4, 4, 4, 4 };
+		visa[19] = new int[] { 4, 4, 4, 4, 3 };
+		compile(CardType.VISA, visa);
+
+		int[][] sixteenOrNineteen = new int[LENGTHS][];
+		sixteenOrNineteen[16] = new int[] { 4, 4, 4, 4 };
+		sixteenOrNineteen[19] = new int[] { 4, 4, 4, 4, 3 };
+		compile(CardType.MASTERCARD, sixteenOrNineteen);
+		compile(CardType.DISCOVER, sixteenOrNineteen);
+		compile(CardType.JCB, sixteenOrNineteen);
+
+		int[][] amex = new int[LENGTHS][];
+		amex[15] = new int[] { 4, 6, 5 };
+		compile(CardType.AMERICAN_EXPRESS, amex);
+
+		int[][] diners = new int[LENGTHS][];
+		diners[14] = new int[] { 4, 6, 4 };
+		diners[16] = new int[] { 4, 4, 4, 4 };
+		compile(CardType.DINERS_CLUB, diners);
+	}
+
+	private CardNumberFormatter() {
+	}
+
+	/**
+	 * @return the number of chars a number of length chars takes once grouped.
+	 */
+	public static int formattedLength(CardType cardType, int length) {
+		return length + separators(mask(cardType, length), length);
+	}
+
+	/**
+	 * Groups a card number, finding its vendor from its digits.
+	 *
+	 * @return offset just past the last char written.
+	 */
+	public static int format(CharSequence number, char separator, char[] dst, int offset) {
+		return format(number, ValidateCreditCard.getCardType(number), separator, dst, offset);
+	}
+
+	/**
+	 * Groups a card number, or masked text standing for one, as the vendor's
+	 * are printed.
+	 *
+	 * @return offset just past the last char written.
+	 */
+	public static int format(CharSequence number, CardType cardType, char separator, char[] dst, int offset) {
+		int length = number.length();
+		int mask = mask(cardType, length);
+		for (int i = 0; i < length; i++) {
+			dst[offset++] = number.charAt(i);
+			if ((mask >>> i & 1) != 0 && i < length - 1) {
+				dst[offset++] = separator;
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * @see #format(CharSequence, CardType, char, char[], int)
+	 */
+	public static void format(CharSequence number, CardType cardType, char separator, CharBuffer dst) {
+		int length = number.length();
+		int mask = mask(cardType, length);
+		for (int i = 0; i < length; i++) {
+			dst.put(number.charAt(i));
+			if ((mask >>> i & 1) != 0 && i < length - 1) {
+				dst.put(separator);
+			}
+		}
+	}
+
+	/**
+	 * Writes the grouped number as single bytes, so the text and separator must
+	 * be ASCII.
+	 *
+	 * @see #format(CharSequence, CardType, char, char[], int)
+	 */
+	public static void format(CharSequence number, CardType cardType, char separator, ByteBuffer dst) {
+		int length = number.length();
+		int mask = mask(cardType, length);
+		for (int i = 0; i < length; i++) {
+			dst.put((byte) number.charAt(i));
+			if ((mask >>> i & 1) != 0 && i < length - 1) {
+				dst.put((byte) separator);
+			}
+		}
+	}
+
+	/**
+	 * Groups numbers one after another, each followed by terminator, e.g. a
+	 * newline. The vendor of each is found from its digits.
+	 *
+	 * @throws java.nio.BufferOverflowException
+	 *           if dst fills up; the numbers up to the one that did not fit
+	 *           have been written.
+	 */
+	public static void formatAll(CharSequence[] numbers, int offset, int count, char separator, char terminator, CharBuffer dst) {
+		for (int i = offset, end = offset + count; i < end; i++) {
+			format(numbers[i], ValidateCreditCard.getCardType(numbers[i]), separator, dst);
+			dst.put(terminator);
+		}
+	}
+
+	/**
+	 * Writes the numbers as single bytes, so the text, separator and terminator
+	 * must be ASCII.
+	 *
+	 * @see #formatAll(CharSequence[], int, int, char, char, CharBuffer)
+	 */
+	public static void formatAll(CharSequence[] numbers, int offset, int count, char separator, char terminator, ByteBuffer dst) {
+		for (int i = offset, end = offset + count; i < end; i++) {
+			format(numbers[i], ValidateCreditCard.getCardType(numbers[i]), separator, dst);
+			dst.put((byte) terminator);
+		}
+	}
+
+	private static int mask(CardType cardType, int length) {
+		return length < LENGTHS ? MASKS[cardType.ordinal() * LENGTHS + length] : 0;
+	}
+
+	private static int separators(int mask, int length) {
+		// a separator never follows the last digit
+		return length == 0 ? 0 : Integer.bitCount(mask & (1 << (length - 1)) - 1);
+	}
+
+	/**
+	 * Sets a vendor's masks. A length without a grouping of its own takes that
+	 * of the next longer length that has one, else the longest.
+	 */
+	private static void compile(CardType cardType, int[][] groupings) {
+		for (int length = 0; length < LENGTHS; length++) {
+			int[] groups = null;
+			for (int full = length; full < LENGTHS && groups == null; full++) {
+				groups = groupings[full];
+			}
+			for (int full = LENGTHS - 1; full >= 0 && groups == null; full--) {
+				groups = groupings[full];
+			}
+			int mask = 0;
+			int end = 0;
+			for (int group : groups) {
+				end += group;
+				mask |= 1 << (end - 1);
+			}
+			MASKS[cardType.ordinal() * LENGTHS + length] = mask;
+		}
+	}
+
+}
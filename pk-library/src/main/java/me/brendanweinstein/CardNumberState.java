@@ -0,0 +1,224 @@
+package me.brendanweinstein;
+
+import java.util.Arrays;
+
+/**
+ * Digits of a card number being typed, kept with the prefix automaton state
+ * and Luhn sums after each of them, so the vendor and validity are always at
+ * hand without scanning the number again.
+ *
+ * An edit replaces a run of digits. Everything before the first digit that
+ * actually changes is kept; from there on each digit costs one automaton step
+ * and two additions. Typing or deleting at the end, the usual case, is O(1),
+ * and a formatter rewriting the same digits with new spacing costs only the
+ * comparison.
+ *
+ * Reads its digits back as a CharSequence. Not thread safe; it belongs to one
+ * text field.
+ */
+public final class CardNumberState implements CharSequence {
+
+	private CardPrefixAutomaton mAutomaton = ValidateCreditCard.getPrefixAutomaton();
+
+	private byte[] mDigits = new byte[CardPrefixAutomaton.MAX_LENGTH];
+
+	private int mLength;
+
+	/**
+	 * automaton state after the first i digits.
+	 */
+	private int[] mStates = new int[CardPrefixAutomaton.MAX_LENGTH + 1];
+
+	/**
+	 * Luhn sum of the first i digits with the last of them as check digit.
+	 */
+	private int[] mUndoubled = new int[CardPrefixAutomaton.MAX_LENGTH + 1];
+
+	/**
+	 * Luhn sum of the first i digits with the last of them doubled.
+	 */
+	private int[] mDoubled = new int[CardPrefixAutomaton.MAX_LENGTH + 1];
+
+	public CardNumberState() {
+		mStates[0] = CardPrefixAutomaton.START;
+	}
+
+	/**
+	 * Replaces digits from to to with the digits of text from start to end.
+	 * Anything in text other than a digit is skipped.
+	 */
+	public void replace(int from, int to, CharSequence text, int start, int end) {
+		if (from < 0 || to < from || to > mLength) {
+			throw new IndexOutOfBoundsException("digits " + from + " to " + to + " of " + mLength);
+		}
+		int inserted = digitCount(text, start, end);
+		int newLength = mLength - (to - from) + inserted;
+		// when digits move, everything from the edit on needs redoing; when they
+		// are only rewritten, from the first one that differs
+		int firstChange = from;
+		if (inserted == to - from) {
+			firstChange = newLength;
+		} else {
+			ensureCapacity(newLength);
+			System.arraycopy(mDigits, to, mDigits, from + inserted, mLength - to);
+		}
+		int i = from;
+		for (int k = start; k < end; k++) {
+			char c = text.charAt(k);
+			if ('0' <= c && c <= '9') {
+				byte digit = (byte) (c - '0');
+				if (mDigits[i] != digit && i < firstChange) {
+					firstChange = i;
+				}
+				mDigits[i++] = digit;
+			}
+		}
+		mLength = newLength;
+		resync(firstChange);
+	}
+
+	/**
+	 * Appends the digits in text, skipping anything else.
+	 */
+	public void append(CharSequence text) {
+		replace(mLength, mLength, text, 0, text.length());
+	}
+
+	/**
+	 * Deletes digits from to to.
+	 */
+	public void delete(int from, int to) {
+		replace(from, to, "", 0, 0);
+	}
+
+	public void clear() {
+		mLength = 0;
+	}
+
+	/**
+	 * @return number of digits.
+	 */
+	@Override
+	public int length() {
+		return mLength;
+	}
+
+	/**
+	 * @return digit i, as a char.
+	 */
+	@Override
+	public char charAt(int i) {
+		if (i >= mLength) {
+			throw new IndexOutOfBoundsException("digit " + i + " of " + mLength);
+		}
+		return (char) ('0' + mDigits[i]);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return toString().substring(start, end);
+	}
+
+	@Override
+	public String toString() {
+		char[] chars = new char[mLength];
+		for (int i = 0; i < mLength; i++) {
+			chars[i] = (char) ('0' + mDigits[i]);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @return vendor of the digits so far, as ValidateCreditCard.getCardType
+	 *         would guess it.
+	 */
+	public CardType getCardType() {
+		return automaton().network(mStates[mLength]);
+	}
+
+	/**
+	 * @return vendor of the number, or NOT_ENOUGH_DIGITS, TOO_MANY_DIGITS or
+	 *         UNKNOWN_CARD, as ValidateCreditCard.matchCardType would find it.
+	 */
+	public CardType matchCardType() {
+		if (mLength < ValidateCreditCard.MIN_DIGITS) {
+			return CardType.NOT_ENOUGH_DIGITS;
+		}
+		if (mLength > ValidateCreditCard.MAX_DIGITS) {
+			return CardType.TOO_MANY_DIGITS;
+		}
+		return automaton().cardType(mStates[mLength], mLength);
+	}
+
+	/**
+	 * @return true if the number has a good prefix, length and check digit.
+	 */
+	public boolean isValid() {
+		// good checksum should be 0 mod 10
+		return mUndoubled[mLength] % 10 == 0 && !matchCardType().isError();
+	}
+
+	/**
+	 * @return the longest legal number starting with the digits so far, or 0 if
+	 *         there is none.
+	 */
+	public int getMaxLength() {
+		return automaton().maxLength(mStates[mLength]);
+	}
+
+	/**
+	 * @return CVV length for the vendor of the digits so far.
+	 */
+	public int getCvvLength() {
+		return automaton().cvvLength(mStates[mLength]);
+	}
+
+	/**
+	 * @return the automaton, after catching up with any ranges published since
+	 *         the digits were fed.
+	 */
+	private CardPrefixAutomaton automaton() {
+		if (mAutomaton != ValidateCreditCard.getPrefixAutomaton()) {
+			mAutomaton = ValidateCreditCard.getPrefixAutomaton();
+			resync(0);
+		}
+		return mAutomaton;
+	}
+
+	/**
+	 * Recomputes the states and sums after digit from onwards.
+	 */
+	private void resync(int from) {
+		for (int i = from; i < mLength; i++) {
+			int digit = mDigits[i];
+			mStates[i + 1] = mAutomaton.next(mStates[i], digit);
+			mUndoubled[i + 1] = mDoubled[i] + digit;
+			mDoubled[i + 1] = mUndoubled[i] + ValidateCreditCard.DOUBLED[digit];
+		}
+	}
+
+	private void ensureCapacity(int length) {
+		if (length > mDigits.length) {
+			int capacity = Math.max(length, mDigits.length * 2);
+			mDigits = Arrays.copyOf(mDigits, capacity);
+			mStates = Arrays.copyOf(mStates, capacity + 1);
+			mUndoubled = Arrays.copyOf(mUndoubled, capacity + 1);
+			mDoubled = Arrays.copyOf(mDoubled, capacity + 1);
+		}
+	}
+
+	/**
+	 * @return number of digits in text from start to end.
+	 */
+	public static int digitCount(CharSequence text, int start, int end) {
+		int digits = 0;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if ('0' <= c && c <= '9') {
+				digits++;
+			}
+		}
+		return digits;
+	}
+
+}
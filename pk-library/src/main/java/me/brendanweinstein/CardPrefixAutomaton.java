@@ -0,0 +1,414 @@
+package me.brendanweinstein;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic automaton over the digits of a card number, compiled from a
+ * RangeTable, that tells the vendor, the legal lengths and the CVV length of a
+ * number one digit at a time.
+ *
+ * Each range is broken into the digit prefixes that cover it exactly, and the
+ * prefixes are merged into a trie whose missing branches are sent to shared
+ * sink states, so every state has a transition for every digit. Feeding a
+ * digit is one array read, whether the number is typed a key at a time or
+ * validated whole, and the answers always agree with matchCardType on the same
+ * table.
+ *
+ * A state is an int. Start from START and call next for each digit; DEAD is
+ * reached once no legal number can have the digits seen so far. Immutable and
+ * thread safe.
+ */
+public final class CardPrefixAutomaton {
+
+	/**
+	 * no legal number starts with the digits fed so far.
+	 */
+	public static final int DEAD = 0;
+
+	/**
+	 * state before any digit is fed.
+	 */
+	public static final int START = 1;
+
+	/**
+	 * longest card number a state can describe.
+	 */
+	public static final int MAX_LENGTH = 19;
+
+	private static final CardType[] CARD_TYPES = CardType.values();
+
+	private static final byte UNKNOWN = (byte) CardType.UNKNOWN_CARD.ordinal();
+
+	private final RangeTable mRanges;
+
+	/**
+	 * next state, by state * 10 + digit.
+	 */
+	private final int[] mNext;
+
+	/**
+	 * vendor ordinal every legal number through the state belongs to, or
+	 * UNKNOWN_CARD's if there are several or none.
+	 */
+	private final byte[] mNetworks;
+
+	/**
+	 * bit n set if a number of n digits ending in the state is legal.
+	 */
+	private final int[] mLengths;
+
+	/**
+	 * bit n set if a legal number of n digits passes through the state.
+	 */
+	private final int[] mReachableLengths;
+
+	/**
+	 * index into mVendorsByLength of the state's accepted numbers.
+	 */
+	private final short[] mAccepts;
+
+	/**
+	 * distinct accept tables: vendor ordinal by number length.
+	 */
+	private final byte[][] mVendorsByLength;
+
+	private CardPrefixAutomaton(RangeTable ranges, int[] next, byte[] networks, int[] lengths, int[] reachableLengths, short[] accepts,
+			byte[][] vendorsByLength) {
+		mRanges = ranges;
+		mNext = next;
+		mNetworks = networks;
+		mLengths = lengths;
+		mReachableLengths = reachableLengths;
+		mAccepts = accepts;
+		mVendorsByLength = vendorsByLength;
+	}
+
+	/**
+	 * Compile the automaton for a range table. Takes time and memory roughly
+	 * proportional to the number of ranges times their length, so it is done
+	 * once per table; see RangeSnapshot.
+	 */
+	public static CardPrefixAutomaton compile(RangeTable ranges) {
+		return new Compiler(ranges).compile();
+	}
+
+	/**
+	 * @return the range table this automaton was compiled from.
+	 */
+	public RangeTable getRanges() {
+		return mRanges;
+	}
+
+	/**
+	 * @param state
+	 *          state after the digits so far.
+	 * @param digit
+	 *          next digit, 0 to 9.
+	 *
+	 * @return state after the digit.
+	 */
+	public int next(int state, int digit) {
+		return mNext[state * 10 + digit];
+	}
+
+	/**
+	 * @return the vendor of every legal number starting with the digits so far,
+	 *         or UNKNOWN_CARD if it could still be one of several or none.
+	 */
+	public CardType network(int state) {
+		return CARD_TYPES[mNetworks[state]];
+	}
+
+	/**
+	 * @param state
+	 *          state after all the digits of a number.
+	 * @param length
+	 *          number of digits fed.
+	 *
+	 * @return the vendor of the number, or UNKNOWN_CARD if it is not a legal
+	 *         number of that length.
+	 */
+	public CardType cardType(int state, int length) {
+		if (length > MAX_LENGTH || (mLengths[state] & 1 << length) == 0) {
+			return CardType.UNKNOWN_CARD;
+		}
+		return CARD_TYPES[mVendorsByLength[mAccepts[state]][length]];
+	}
+
+	/**
+	 * @return bit n set if a number of n digits ending in the state is legal.
+	 */
+	public int lengthMask(int state) {
+		return mLengths[state];
+	}
+
+	/**
+	 * @return bit n set if some legal number of n digits starts with the digits
+	 *         fed so far.
+	 */
+	public int reachableLengthMask(int state) {
+		return mReachableLengths[state];
+	}
+
+	/**
+	 * @return the longest legal number that starts with the digits fed so far,
+	 *         or 0 if there is none.
+	 */
+	public int maxLength(int state) {
+		return 31 - Integer.numberOfLeadingZeros(mReachableLengths[state]);
+	}
+
+	/**
+	 * @return CVV length of the vendor the digits so far belong to, or the usual
+	 *         three digits while it is not yet known.
+	 */
+	public int cvvLength(int state) {
+		return network(state).getMaxCVVLength();
+	}
+
+	/**
+	 * @return number of states.
+	 */
+	public int size() {
+		return mNetworks.length;
+	}
+
+	/**
+	 * Builds the trie of prefixes, then flattens it into the transition table.
+	 */
+	private static final class Compiler {
+
+		private final RangeTable mRanges;
+
+		private int[] mChildren = new int[1024 * 10];
+
+		/**
+		 * per trie node, null or the vendor ordinal by length of the ranges
+		 * whose prefix ends at exactly that node.
+		 */
+		private byte[][] mTerminals = new byte[1024][];
+
+		private int mNodes = 2;
+
+		Compiler(RangeTable ranges) {
+			mRanges = ranges;
+		}
+
+		CardPrefixAutomaton compile() {
+			for (int i = 0; i < mRanges.size(); i++) {
+				addRange(mRanges.low(i), mRanges.high(i), (byte) mRanges.cardType(i).ordinal());
+			}
+
+			// accept tables inherited down the trie, interned by content
+			List<byte[]> accepts = new ArrayList<byte[]>();
+			Map<ByteBuffer, Integer> acceptIndex = new HashMap<ByteBuffer, Integer>();
+			byte[] none = new byte[MAX_LENGTH + 1];
+			Arrays.fill(none, UNKNOWN);
+			intern(none, accepts, acceptIndex);
+
+			short[] nodeAccepts = new short[mNodes];
+			int[] subtreeVendors = new int[mNodes];
+			int[] subtreeLengths = new int[mNodes];
+			inherit(START, none, nodeAccepts, subtreeVendors, subtreeLengths, accepts, acceptIndex);
+
+			// one self looping sink per accept table, entered when the digits
+			// leave the trie; the empty table's sink is DEAD itself
+			int sinks = accepts.size() - 1;
+			int states = mNodes + sinks;
+			int[] next = new int[states * 10];
+			byte[] networks = new byte[states];
+			int[] lengths = new int[states];
+			int[] reachable = new int[states];
+			short[] stateAccepts = new short[states];
+			networks[DEAD] = UNKNOWN;
+			for (int a = 1; a < accepts.size(); a++) {
+				int sink = mNodes + a - 1;
+				Arrays.fill(next, sink * 10, sink * 10 + 10, sink);
+				stateAccepts[sink] = (short) a;
+				lengths[sink] = reachable[sink] = lengthsOf(accepts.get(a));
+				networks[sink] = single(vendorsOf(accepts.get(a)));
+			}
+			for (int node = START; node < mNodes; node++) {
+				int accept = nodeAccepts[node];
+				int sink = accept == 0 ? DEAD : mNodes + accept - 1;
+				for (int digit = 0; digit < 10; digit++) {
+					int child = mChildren[node * 10 + digit];
+					next[node * 10 + digit] = child != 0 ? child : sink;
+				}
+				stateAccepts[node] = (short) accept;
+				lengths[node] = lengthsOf(accepts.get(accept));
+				reachable[node] = subtreeLengths[node];
+				networks[node] = single(subtreeVendors[node]);
+			}
+			return new CardPrefixAutomaton(mRanges, next, networks, lengths, reachable, stateAccepts, accepts.toArray(new byte[accepts
+					.size()][]));
+		}
+
+		/**
+		 * Depth first, merges each node's own terminals into what it inherits, and
+		 * gathers the vendors and lengths found at or below it.
+		 */
+		private void inherit(int node, byte[] inherited, short[] nodeAccepts, int[] subtreeVendors, int[] subtreeLengths,
+				List<byte[]> accepts, Map<ByteBuffer, Integer> acceptIndex) {
+			byte[] accept = inherited;
+			byte[] own = mTerminals[node];
+			if (own != null) {
+				accept = inherited.clone();
+				for (int length = 0; length <= MAX_LENGTH; length++) {
+					if (own[length] != UNKNOWN) {
+						accept[length] = own[length];
+					}
+				}
+			}
+			if (accepts.size() > Short.MAX_VALUE) {
+				throw new IllegalStateException("too many distinct prefix outcomes");
+			}
+			nodeAccepts[node] = (short) intern(accept, accepts, acceptIndex);
+			int vendors = vendorsOf(accept);
+			int lengths = lengthsOf(accept);
+			for (int digit = 0; digit < 10; digit++) {
+				int child = mChildren[node * 10 + digit];
+				if (child != 0) {
+					inherit(child, accept, nodeAccepts, subtreeVendors, subtreeLengths, accepts, acceptIndex);
+					vendors |= subtreeVendors[child];
+					lengths |= subtreeLengths[child];
+				}
+			}
+			subtreeVendors[node] = vendors;
+			subtreeLengths[node] = lengths;
+		}
+
+		/**
+		 * Adds a range, splitting it where its bounds differ in length.
+		 */
+		private void addRange(long low, long high, byte vendor) {
+			int lowLength = Long.toString(low).length();
+			int highLength = Long.toString(high).length();
+			if (highLength > MAX_LENGTH) {
+				throw new IllegalArgumentException("range " + low + ".." + high + " is longer than " + MAX_LENGTH + " digits");
+			}
+			for (int length = lowLength; length <= highLength; length++) {
+				String from = length == lowLength ? Long.toString(low) : "1" + repeat('0', length - 1);
+				String to = length == highLength ? Long.toString(high) : repeat('9', length);
+				cover(from.toCharArray(), to.toCharArray(), 0, vendor);
+			}
+		}
+
+		/**
+		 * Adds the fewest prefixes that cover every number from low to high, both
+		 * of the same length and agreeing on their first pos digits.
+		 */
+		private void cover(char[] low, char[] high, int pos, byte vendor) {
+			int length = low.length;
+			if (isAll(low, pos, '0') && isAll(high, pos, '9')) {
+				addPrefix(low, pos, length, vendor);
+				return;
+			}
+			if (low[pos] == high[pos]) {
+				cover(low, high, pos + 1, vendor);
+				return;
+			}
+			// low end up to low's digit followed by nines
+			char[] lowTop = low.clone();
+			Arrays.fill(lowTop, pos + 1, length, '9');
+			cover(low, lowTop, pos + 1, vendor);
+			// whole prefixes in between
+			char[] middle = low.clone();
+			for (char digit = (char) (low[pos] + 1); digit < high[pos]; digit++) {
+				middle[pos] = digit;
+				addPrefix(middle, pos + 1, length, vendor);
+			}
+			// high's digit followed by zeros up to high
+			char[] highBottom = high.clone();
+			Arrays.fill(highBottom, pos + 1, length, '0');
+			cover(highBottom, high, pos + 1, vendor);
+		}
+
+		private void addPrefix(char[] digits, int prefixLength, int length, byte vendor) {
+			int node = START;
+			for (int i = 0; i < prefixLength; i++) {
+				int slot = node * 10 + (digits[i] - '0');
+				if (mChildren[slot] == 0) {
+					mChildren[slot] = newNode();
+				}
+				node = mChildren[slot];
+			}
+			if (mTerminals[node] == null) {
+				mTerminals[node] = new byte[MAX_LENGTH + 1];
+				Arrays.fill(mTerminals[node], UNKNOWN);
+			}
+			mTerminals[node][length] = vendor;
+		}
+
+		private int newNode() {
+			if (mNodes == mTerminals.length) {
+				mTerminals = Arrays.copyOf(mTerminals, mNodes * 2);
+				mChildren = Arrays.copyOf(mChildren, mNodes * 2 * 10);
+			}
+			return mNodes++;
+		}
+
+		private static int intern(byte[] accept, List<byte[]> accepts, Map<ByteBuffer, Integer> acceptIndex) {
+			ByteBuffer key = ByteBuffer.wrap(accept);
+			Integer index = acceptIndex.get(key);
+			if (index == null) {
+				index = accepts.size();
+				accepts.add(accept);
+				acceptIndex.put(key, index);
+			}
+			return index;
+		}
+
+		private static int lengthsOf(byte[] accept) {
+			int lengths = 0;
+			for (int length = 0; length <= MAX_LENGTH; length++) {
+				if (accept[length] != UNKNOWN) {
+					lengths |= 1 << length;
+				}
+			}
+			return lengths;
+		}
+
+		/**
+		 * @return bit set of the vendor ordinals in an accept table.
+		 */
+		private static int vendorsOf(byte[] accept) {
+			int vendors = 0;
+			for (int length = 0; length <= MAX_LENGTH; length++) {
+				if (accept[length] != UNKNOWN) {
+					vendors |= 1 << accept[length];
+				}
+			}
+			return vendors;
+		}
+
+		/**
+		 * @return the ordinal if the set holds exactly one vendor, else
+		 *         UNKNOWN_CARD's.
+		 */
+		private static byte single(int vendors) {
+			return vendors != 0 && (vendors & vendors - 1) == 0 ? (byte) Integer.numberOfTrailingZeros(vendors) : UNKNOWN;
+		}
+
+		private static boolean isAll(char[] digits, int from, char digit) {
+			for (int i = from; i < digits.length; i++) {
+				if (digits[i] != digit) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static String repeat(char c, int count) {
+			char[] chars = new char[count];
+			Arrays.fill(chars, c);
+			return new String(chars);
+		}
+	}
+
+}
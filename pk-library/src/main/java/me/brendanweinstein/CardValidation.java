@@ -0,0 +1,236 @@
+package me.brendanweinstein;
+
+/**
+ * Checks a whole card, number, expiry and CVV, in one pass over each field.
+ *
+ * The result is a bitmask of what is wrong, VALID if nothing is. Nothing
+ * throws on odd input, nothing is allocated and no UI is touched, so it is fit
+ * to call on every keystroke or from a background thread.
+ */
+public final class CardValidation {
+
+	public static final int VALID = 0;
+
+	/**
+	 * number holds a character other than a digit, space or dash.
+	 */
+	public static final int PAN_MALFORMED = 1;
+
+	/**
+	 * number has too few digits.
+	 */
+	public static final int PAN_INCOMPLETE = 1 << 1;
+
+	/**
+	 * number has too many digits.
+	 */
+	public static final int PAN_TOO_LONG = 1 << 2;
+
+	/**
+	 * number is not in any vendor's range for its length.
+	 */
+	public static final int PAN_UNKNOWN_VENDOR = 1 << 3;
+
+	/**
+	 * number has a bad check digit.
+	 */
+	public static final int PAN_CHECKSUM = 1 << 4;
+
+	/**
+	 * expiry holds a character other than a digit, '/' or space, or a year that
+	 * is not two or four digits in this century.
+	 */
+	public static final int EXPIRY_MALFORMED = 1 << 8;
+
+	/**
+	 * expiry has fewer than four digits.
+	 */
+	public static final int EXPIRY_INCOMPLETE = 1 << 9;
+
+	/**
+	 * expiry month is not 01 to 12.
+	 */
+	public static final int EXPIRY_BAD_MONTH = 1 << 10;
+
+	/**
+	 * expiry month is over.
+	 */
+	public static final int EXPIRY_EXPIRED = 1 << 11;
+
+	/**
+	 * CVV holds a character other than a digit.
+	 */
+	public static final int CVV_MALFORMED = 1 << 16;
+
+	/**
+	 * CVV is shorter than the vendor's.
+	 */
+	public static final int CVV_INCOMPLETE = 1 << 17;
+
+	/**
+	 * CVV is longer than the vendor's.
+	 */
+	public static final int CVV_TOO_LONG = 1 << 18;
+
+	public static final int PAN_ERRORS = 0xFF;
+
+	public static final int EXPIRY_ERRORS = 0xFF << 8;
+
+	public static final int CVV_ERRORS = 0xFF << 16;
+
+	private static final CardType[] CARD_TYPES = CardType.values();
+
+	private CardValidation() {
+	}
+
+	/**
+	 * @param pan
+	 *          card number, possibly with spaces or dashes.
+	 * @param expiry
+	 *          MM/YY, MMYY or MM/YYYY.
+	 * @param cvv
+	 *          security code; its length is checked against the vendor of pan.
+	 * @param nowYymm
+	 *          the current month as year % 100 * 100 + month, e.g. 2610 for
+	 *          October 2026; see toYymm.
+	 *
+	 * @return VALID, or the error bits that apply.
+	 */
+	public static int validate(CharSequence pan, CharSequence expiry, CharSequence cvv, int nowYymm) {
+		return errorsOf(validateAndMatch(ValidateCreditCard.getSnapshot(), pan, expiry, cvv, nowYymm));
+	}
+
+	/**
+	 * Validates against a given snapshot and matches the vendor from the same
+	 * scan of pan, for batch callers that record both and want them to come
+	 * from one version of the ranges.
+	 *
+	 * @return the bits validate would return, see errorsOf, and the vendor
+	 *         ValidateCreditCard.matchCardType would return, see cardTypeOf.
+	 * @see #validate(CharSequence, CharSequence, CharSequence, int)
+	 */
+	public static long validateAndMatch(RangeSnapshot snapshot, CharSequence pan, CharSequence expiry, CharSequence cvv,
+			int nowYymm) {
+		CardPrefixAutomaton automaton = snapshot.getPrefixAutomaton();
+		long scan = ValidateCreditCard.scan(automaton, pan, 0, pan.length());
+		int result = panErrors(automaton, scan);
+		result |= expiryErrors(expiry, nowYymm);
+		CardType matched = ValidateCreditCard.cardTypeOf(automaton, scan);
+		CardType cardType = matched;
+		if (cardType.isError()) {
+			// judge the CVV by the vendor the digits so far point to
+			cardType = ValidateCreditCard.networkOf(automaton, scan);
+		}
+		result |= cvvErrors(cvv, cardType.getMaxCVVLength());
+		return (long) matched.ordinal() << 32 | result & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @return VALID, or the error bits of a validateAndMatch result.
+	 */
+	public static int errorsOf(long result) {
+		return (int) result;
+	}
+
+	/**
+	 * @return the vendor of a validateAndMatch result, or the CardType error
+	 *         for the number.
+	 */
+	public static CardType cardTypeOf(long result) {
+		return CARD_TYPES[(int) (result >>> 32)];
+	}
+
+	/**
+	 * @return VALID, or the PAN error bits that apply.
+	 */
+	public static int validatePan(CharSequence pan) {
+		CardPrefixAutomaton automaton = ValidateCreditCard.getPrefixAutomaton();
+		return panErrors(automaton, ValidateCreditCard.scan(automaton, pan, 0, pan.length()));
+	}
+
+	/**
+	 * @return VALID, or the expiry error bits that apply.
+	 * @see #validate(CharSequence, CharSequence, CharSequence, int)
+	 */
+	public static int validateExpiry(CharSequence expiry, int nowYymm) {
+		return expiryErrors(expiry, nowYymm);
+	}
+
+	/**
+	 * @param year
+	 *          four digit year.
+	 * @param month
+	 *          1 to 12.
+	 *
+	 * @return the month in the form validate takes for nowYymm.
+	 */
+	public static int toYymm(int year, int month) {
+		return year % 100 * 100 + month;
+	}
+
+	private static int panErrors(CardPrefixAutomaton automaton, long scan) {
+		if (ValidateCreditCard.isMalformed(scan)) {
+			return PAN_MALFORMED;
+		}
+		switch (ValidateCreditCard.cardTypeOf(automaton, scan)) {
+		case NOT_ENOUGH_DIGITS:
+			return PAN_INCOMPLETE;
+		case TOO_MANY_DIGITS:
+			return PAN_TOO_LONG;
+		case UNKNOWN_CARD:
+			return PAN_UNKNOWN_VENDOR | (ValidateCreditCard.isLuhnValid(scan) ? 0 : PAN_CHECKSUM);
+		default:
+			return ValidateCreditCard.isLuhnValid(scan) ? VALID : PAN_CHECKSUM;
+		}
+	}
+
+	private static int expiryErrors(CharSequence expiry, int nowYymm) {
+		int digits = 0;
+		int month = 0;
+		int year = 0;
+		for (int i = 0, n = expiry.length(); i < n; i++) {
+			char c = expiry.charAt(i);
+			if ('0' <= c && c <= '9') {
+				if (digits < 2) {
+					month = month * 10 + (c - '0');
+				} else {
+					year = year * 10 + (c - '0');
+				}
+				digits++;
+			} else if (c != '/' && c != ' ') {
+				return EXPIRY_MALFORMED;
+			}
+		}
+		if (digits < 4) {
+			return EXPIRY_INCOMPLETE;
+		}
+		if (digits == 6) {
+			if (year < 2000 || year > 2099) {
+				return EXPIRY_MALFORMED;
+			}
+			year -= 2000;
+		} else if (digits != 4) {
+			return EXPIRY_MALFORMED;
+		}
+		if (month < 1 || month > 12) {
+			return EXPIRY_BAD_MONTH;
+		}
+		// good through the end of its month
+		return year * 100 + month < nowYymm ? EXPIRY_EXPIRED : VALID;
+	}
+
+	private static int cvvErrors(CharSequence cvv, int expectedLength) {
+		int n = cvv.length();
+		for (int i = 0; i < n; i++) {
+			char c = cvv.charAt(i);
+			if (c < '0' || c > '9') {
+				return CVV_MALFORMED;
+			}
+		}
+		if (n < expectedLength) {
+			return CVV_INCOMPLETE;
+		}
+		return n > expectedLength ? CVV_TOO_LONG : VALID;
+	}
+
+}
@@ -0,0 +1,24 @@
+package me.brendanweinstein;
+
+/**
+ * Source of the current time for expiry checks, so tests and servers can pin
+ * the month.
+ */
+public interface ExpiryClock {
+
+	/**
+	 * the device clock.
+	 */
+	ExpiryClock SYSTEM = new ExpiryClock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * @return milliseconds since the epoch, as System.currentTimeMillis.
+	 */
+	long currentTimeMillis();
+
+}
@@ -0,0 +1,117 @@
+package me.brendanweinstein;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Checks card expiry dates against the current month, held as a YYMM int (year
+ * % 100 * 100 + month, 2610 for October 2026) that is only worked out again
+ * once the clock passes into the next month. Between month boundaries a check
+ * is a clock read and a couple of int comparisons, with nothing allocated.
+ *
+ * Thread safe; the cached month is immutable and swapped whole. A clock set
+ * back into an earlier month is noticed too.
+ */
+public final class ExpiryValidator {
+
+	private static final ExpiryValidator DEFAULT = new ExpiryValidator(ExpiryClock.SYSTEM, TimeZone.getDefault());
+
+	private final ExpiryClock mClock;
+
+	private final TimeZone mTimeZone;
+
+	private volatile Month mMonth = new Month(0, 0, 0);
+
+	/**
+	 * @param timeZone
+	 *          zone whose calendar decides when a month ends.
+	 */
+	public ExpiryValidator(ExpiryClock clock, TimeZone timeZone) {
+		mClock = clock;
+		mTimeZone = timeZone;
+	}
+
+	/**
+	 * @return the validator for the device clock and time zone.
+	 */
+	public static ExpiryValidator getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return the current month as YYMM.
+	 */
+	public int currentYymm() {
+		Month month = mMonth;
+		long now = mClock.currentTimeMillis();
+		if (now >= month.mEnd || now < month.mStart) {
+			month = computeMonth(now);
+			mMonth = month;
+		}
+		return month.mYymm;
+	}
+
+	/**
+	 * @param month
+	 *          1 to 12.
+	 * @param year
+	 *          two digit year.
+	 *
+	 * @return true if the card ran out before the current month. A card is good
+	 *         through the end of its expiry month.
+	 */
+	public boolean isExpired(int month, int year) {
+		return year * 100 + month < currentYymm();
+	}
+
+	/**
+	 * @param digit
+	 *          first digit of a two digit year.
+	 *
+	 * @return false if every year starting with the digit is already over.
+	 */
+	public boolean isPossibleYearTens(int digit) {
+		return digit >= currentYymm() / 1000;
+	}
+
+	/**
+	 * @param expiry
+	 *          MM/YY, MMYY or MM/YYYY.
+	 *
+	 * @return CardValidation.VALID, or the CardValidation expiry error bits.
+	 */
+	public int validate(CharSequence expiry) {
+		return CardValidation.validateExpiry(expiry, currentYymm());
+	}
+
+	/**
+	 * Works out the current month and when it ends. Only runs once a month.
+	 */
+	private Month computeMonth(long now) {
+		Calendar calendar = Calendar.getInstance(mTimeZone);
+		calendar.setTimeInMillis(now);
+		int yymm = CardValidation.toYymm(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1);
+		calendar.set(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH), 1, 0, 0, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		long start = calendar.getTimeInMillis();
+		calendar.add(Calendar.MONTH, 1);
+		return new Month(yymm, start, calendar.getTimeInMillis());
+	}
+
+	/**
+	 * A month as YYMM, with the millisecond it starts and the one after it ends.
+	 */
+	private static final class Month {
+
+		final int mYymm;
+		final long mStart;
+		final long mEnd;
+
+		Month(int yymm, long start, long end) {
+			mYymm = yymm;
+			mStart = start;
+			mEnd = end;
+		}
+	}
+
+}
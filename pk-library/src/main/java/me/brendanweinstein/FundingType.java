@@ -0,0 +1,8 @@
+package me.brendanweinstein;
+
+/**
+ * How a card is funded, as reported by the issuer's BIN data.
+ */
+public enum FundingType {
+	CREDIT, DEBIT, PREPAID, CHARGE, UNKNOWN
+}
@@ -0,0 +1,53 @@
+package me.brendanweinstein;
+
+/**
+ * What the issuer metadata says about one BIN. Immutable.
+ *
+ * @see IssuerMetadataStore
+ */
+public final class IssuerInfo {
+
+	private final int mBin;
+	private final String mCountry;
+	private final FundingType mFundingType;
+	private final String mProductTier;
+
+	public IssuerInfo(int bin, String country, FundingType fundingType, String productTier) {
+		mBin = bin;
+		mCountry = country;
+		mFundingType = fundingType;
+		mProductTier = productTier;
+	}
+
+	/**
+	 * @return the BIN, i.e. the leading digits of the card number, this applies
+	 *         to.
+	 */
+	public int getBin() {
+		return mBin;
+	}
+
+	/**
+	 * @return ISO 3166 alpha-2 code of the issuing country, e.g. "US".
+	 */
+	public String getCountry() {
+		return mCountry;
+	}
+
+	public FundingType getFundingType() {
+		return mFundingType;
+	}
+
+	/**
+	 * @return product tier as the network names it, e.g. "PLATINUM".
+	 */
+	public String getProductTier() {
+		return mProductTier;
+	}
+
+	@Override
+	public String toString() {
+		return mBin + " " + mCountry + " " + mFundingType + " " + mProductTier;
+	}
+
+}
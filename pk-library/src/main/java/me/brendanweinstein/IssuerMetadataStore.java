@@ -0,0 +1,369 @@
+package me.brendanweinstein;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Issuer country, funding type and product tier by BIN, read lazily from a
+ * columnar file.
+ *
+ * The file is memory mapped and searched where it lies: a lookup binary
+ * searches the BIN column and decodes the one matching row. Country and tier
+ * are stored as indexes into small dictionaries, which are the only part read
+ * up front, so heap use does not grow with the number of BINs. A bounded LRU
+ * cache of decoded entries sits in front, so hot BINs cost one map lookup. It
+ * is split in stripes by BIN, each with its own lock, so threads looking up
+ * different BINs seldom wait on each other.
+ *
+ * Layout, big-endian:
+ *
+ * <pre>
+ * int    MAGIC
+ * short  FORMAT_VERSION
+ * int    data version
+ * byte   BIN digits, 6 or 8
+ * int    row count n
+ * short  country count, then each as short length and ASCII bytes
+ * short  tier count, then each as short length and ASCII bytes
+ * n x    int BIN, ascending
+ * n x    short country index
+ * n x    short tier index
+ * n x    byte FundingType ordinal
+ * </pre>
+ *
+ * Lookups are thread safe.
+ */
+public final class IssuerMetadataStore implements Closeable {
+
+	/**
+	 * "PKIS"
+	 */
+	public static final int MAGIC = 0x504B4953;
+
+	public static final int FORMAT_VERSION = 1;
+
+	private static final FundingType[] FUNDING_TYPES = FundingType.values();
+
+	/**
+	 * cached in place of null, so BINs that are not in the file stay cheap.
+	 */
+	private static final IssuerInfo NOT_FOUND = new IssuerInfo(-1, null, FundingType.UNKNOWN, null);
+
+	private final ByteBuffer mData;
+	private final Closeable mFile;
+	private final int mVersion;
+	private final int mBinDigits;
+	private final int mRows;
+	private final String[] mCountries;
+	private final String[] mTiers;
+	private final int mBinsOffset;
+	private final int mCountriesOffset;
+	private final int mTiersOffset;
+	private final int mFundingOffset;
+	private final LruCache mCache;
+
+	/**
+	 * @param data
+	 *          the store, e.g. a mapped file. Its position and order are left
+	 *          alone, and its contents must not change.
+	 * @param cacheSize
+	 *          most decoded entries to keep.
+	 * @throws IOException
+	 *           if data does not hold a valid store.
+	 */
+	public IssuerMetadataStore(ByteBuffer data, int cacheSize) throws IOException {
+		this(data, cacheSize, null);
+	}
+
+	private IssuerMetadataStore(ByteBuffer data, int cacheSize, Closeable file) throws IOException {
+		ByteBuffer in = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+		try {
+			if (in.getInt() != MAGIC) {
+				throw new IOException("not an issuer metadata store");
+			}
+			int format = in.getShort();
+			if (format != FORMAT_VERSION) {
+				throw new IOException("unsupported issuer metadata format " + format);
+			}
+			mVersion = in.getInt();
+			mBinDigits = in.get();
+			mRows = in.getInt();
+			mCountries = readDictionary(in);
+			mTiers = readDictionary(in);
+			mBinsOffset = in.position();
+			// in long, as a corrupt row count would overflow the offsets
+			if (mRows < 0 || mBinsOffset + (long) mRows * (4 + 2 + 2 + 1) > in.limit()) {
+				throw new IOException("truncated issuer metadata");
+			}
+			mCountriesOffset = mBinsOffset + mRows * 4;
+			mTiersOffset = mCountriesOffset + mRows * 2;
+			mFundingOffset = mTiersOffset + mRows * 2;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated issuer metadata");
+		}
+		mData = in;
+		mFile = file;
+		mCache = new LruCache(cacheSize);
+	}
+
+	/**
+	 * Memory maps a store file read-only.
+	 *
+	 * @param cacheSize
+	 *          most decoded entries to keep.
+	 */
+	public static IssuerMetadataStore open(File file, int cacheSize) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		boolean opened = false;
+		try {
+			long length = raf.length();
+			if (length > Integer.MAX_VALUE) {
+				// map would throw IllegalArgumentException
+				throw new IOException("issuer metadata file of " + length + " bytes is too large to map");
+			}
+			ByteBuffer data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			IssuerMetadataStore result = new IssuerMetadataStore(data, cacheSize, raf);
+			opened = true;
+			return result;
+		} finally {
+			if (!opened) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * @return version of the metadata, as written.
+	 */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * @return how many leading digits of a card number make up a BIN here.
+	 */
+	public int getBinDigits() {
+		return mBinDigits;
+	}
+
+	/**
+	 * @return number of BINs in the store.
+	 */
+	public int size() {
+		return mRows;
+	}
+
+	/**
+	 * @param bin
+	 *          the first getBinDigits() digits of a card number.
+	 *
+	 * @return what is known of the BIN, or null if it is not in the store.
+	 */
+	public IssuerInfo lookup(int bin) {
+		IssuerInfo info = mCache.get(bin);
+		if (info == null) {
+			info = decode(bin);
+			mCache.put(bin, info);
+		}
+		return info == NOT_FOUND ? null : info;
+	}
+
+	/**
+	 * Looks up the BIN at the start of a card number. Spaces and dashes are
+	 * skipped.
+	 *
+	 * @return what is known of the BIN, or null if it is not in the store or the
+	 *         number is too short.
+	 */
+	public IssuerInfo lookup(CharSequence creditCardNumber) {
+		int bin = 0;
+		int digits = 0;
+		for (int i = 0, n = creditCardNumber.length(); i < n && digits < mBinDigits; i++) {
+			char c = creditCardNumber.charAt(i);
+			if ('0' <= c && c <= '9') {
+				bin = bin * 10 + (c - '0');
+				digits++;
+			} else if (c != ' ' && c != '-') {
+				return null;
+			}
+		}
+		return digits == mBinDigits ? lookup(bin) : null;
+	}
+
+	/**
+	 * Releases the file. The mapping itself goes when the store is collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mFile != null) {
+			mFile.close();
+		}
+	}
+
+	private IssuerInfo decode(int bin) {
+		int low = 0;
+		int high = mRows - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midBin = mData.getInt(mBinsOffset + mid * 4);
+			if (midBin < bin) {
+				low = mid + 1;
+			} else if (midBin > bin) {
+				high = mid - 1;
+			} else {
+				return new IssuerInfo(bin, mCountries[mData.getShort(mCountriesOffset + mid * 2) & 0xFFFF],
+						FUNDING_TYPES[mData.get(mFundingOffset + mid)], mTiers[mData.getShort(mTiersOffset + mid * 2) & 0xFFFF]);
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	private static String[] readDictionary(ByteBuffer in) throws IOException {
+		String[] words = new String[in.getShort() & 0xFFFF];
+		for (int i = 0; i < words.length; i++) {
+			byte[] word = new byte[in.getShort() & 0xFFFF];
+			in.get(word);
+			words[i] = new String(word, "US-ASCII");
+		}
+		return words;
+	}
+
+	/**
+	 * Writes a store. Rows must be in ascending BIN order with no repeats. The
+	 * stream is flushed but not closed.
+	 *
+	 * @param binDigits
+	 *          6 or 8, the length of every BIN.
+	 */
+	public static void write(int version, int binDigits, IssuerInfo[] rows, OutputStream os) throws IOException {
+		List<String> countries = new ArrayList<String>();
+		List<String> tiers = new ArrayList<String>();
+		Map<String, Integer> countryIndex = new HashMap<String, Integer>();
+		Map<String, Integer> tierIndex = new HashMap<String, Integer>();
+		for (int i = 0; i < rows.length; i++) {
+			if (i > 0 && rows[i].getBin() <= rows[i - 1].getBin()) {
+				throw new IllegalArgumentException("BIN " + rows[i].getBin() + " out of order");
+			}
+			index(rows[i].getCountry(), countries, countryIndex);
+			index(rows[i].getProductTier(), tiers, tierIndex);
+		}
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeShort(FORMAT_VERSION);
+		out.writeInt(version);
+		out.writeByte(binDigits);
+		out.writeInt(rows.length);
+		writeDictionary(countries, out);
+		writeDictionary(tiers, out);
+		for (IssuerInfo row : rows) {
+			out.writeInt(row.getBin());
+		}
+		for (IssuerInfo row : rows) {
+			out.writeShort(countryIndex.get(row.getCountry()));
+		}
+		for (IssuerInfo row : rows) {
+			out.writeShort(tierIndex.get(row.getProductTier()));
+		}
+		for (IssuerInfo row : rows) {
+			out.writeByte(row.getFundingType().ordinal());
+		}
+		out.flush();
+	}
+
+	private static void index(String word, List<String> words, Map<String, Integer> indexes) {
+		if (!indexes.containsKey(word)) {
+			if (words.size() == 0xFFFF) {
+				throw new IllegalArgumentException("too many distinct values");
+			}
+			indexes.put(word, words.size());
+			words.add(word);
+		}
+	}
+
+	private static void writeDictionary(List<String> words, DataOutputStream out) throws IOException {
+		out.writeShort(words.size());
+		for (String word : words) {
+			out.writeShort(word.length());
+			out.writeBytes(word);
+		}
+	}
+
+	/**
+	 * Access ordered maps that each drop their eldest entry past a fixed size,
+	 * one per stripe of BINs. Eviction is least recently used within a stripe,
+	 * which for a hashed spread of BINs is close to it over the whole cache.
+	 */
+	private static final class LruCache {
+
+		private static final int MAX_STRIPES = 16;
+
+		private final Stripe[] mStripes;
+
+		private final int mShift;
+
+		LruCache(int capacity) {
+			int stripes = 1;
+			while (stripes < MAX_STRIPES && stripes * 2 <= capacity) {
+				stripes *= 2;
+			}
+			mStripes = new Stripe[stripes];
+			mShift = 32 - Integer.numberOfTrailingZeros(stripes);
+			for (int i = 0; i < stripes; i++) {
+				mStripes[i] = new Stripe((capacity + stripes - 1) / stripes);
+			}
+		}
+
+		IssuerInfo get(int bin) {
+			Stripe stripe = stripe(bin);
+			synchronized (stripe) {
+				return stripe.get(bin);
+			}
+		}
+
+		void put(int bin, IssuerInfo info) {
+			Stripe stripe = stripe(bin);
+			synchronized (stripe) {
+				stripe.put(bin, info);
+			}
+		}
+
+		/**
+		 * Picks a stripe by the top bits of a multiplicative hash, so runs of
+		 * neighbouring BINs spread across stripes.
+		 */
+		private Stripe stripe(int bin) {
+			return mShift == 32 ? mStripes[0] : mStripes[(bin * 0x9E3779B9) >>> mShift];
+		}
+	}
+
+	private static final class Stripe extends LinkedHashMap<Integer, IssuerInfo> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int mCapacity;
+
+		Stripe(int capacity) {
+			super(16, 0.75f, true);
+			mCapacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, IssuerInfo> eldest) {
+			return size() > mCapacity;
+		}
+	}
+
+}
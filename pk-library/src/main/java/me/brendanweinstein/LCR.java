@@ -0,0 +1,42 @@
+package me.brendanweinstein;
+
+/**
+ * Describes a single Legal Card Range
+ */
+final class LCR {
+	// ------------------------------ FIELDS ------------------------------
+
+	/**
+	 * enumeration credit card service
+	 */
+	public final CardType cardType;
+
+	/**
+	 * low and high bounds on range covered by this vendor
+	 */
+	public final long high;
+
+	/**
+	 * low bounds on range covered by this vendor
+	 */
+	public final long low;
+
+	// -------------------------- PUBLIC INSTANCE METHODS
+	// --------------------------
+
+	/**
+	 * public constructor
+	 * 
+	 * @param low
+	 *          lowest credit card number in range.
+	 * @param high
+	 *          highest credit card number in range
+	 * @param cardType
+	 *          enum constant for vendor
+	 */
+	public LCR(long low, long high, CardType cardType) {
+		this.low = low;
+		this.high = high;
+		this.cardType = cardType;
+	}// end public constructor
+}
@@ -0,0 +1,277 @@
+package me.brendanweinstein;
+
+import java.util.Arrays;
+
+/**
+ * Compressed read-only copy of a RangeTable for tight heaps, searched in place
+ * without being unpacked.
+ *
+ * Ranges are cut into blocks of BLOCK_SIZE. A skip index holds the low bound of
+ * the first range of each block and where the block starts in a byte stream.
+ * Inside a block each range is stored as two deltas, the gap from the previous
+ * range and the width of this one. IIN ranges are nearly always a prefix
+ * followed by all zeros to all nines, so the deltas are round decimal numbers:
+ * each is written as mantissa and power of ten in a varint, usually one or two
+ * bytes. Vendors take four bits per range.
+ *
+ * A lookup binary searches the skip index and then adds up at most BLOCK_SIZE
+ * deltas. Nothing is allocated.
+ *
+ * ValidateCreditCard loads its packaged ranges into one of these on Android;
+ * elsewhere it keeps the SortedRangeTable they are read as.
+ */
+public final class PackedRangeTable implements RangeTable {
+
+	/**
+	 * ranges per block; trades lookup time against skip index size.
+	 */
+	private static final int BLOCK_SIZE = 32;
+
+	/**
+	 * delta exponent that flags a delta written whole, because its mantissa
+	 * would not fit beside the exponent.
+	 */
+	private static final int RAW = 31;
+
+	private static final CardType[] CARD_TYPES = CardType.values();
+
+	private static final long[] POWERS_OF_TEN = new long[19];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private final int mVersion;
+
+	private final int mSize;
+
+	/**
+	 * low bound of the first range of each block.
+	 */
+	private final long[] mBlockLows;
+
+	/**
+	 * start of each block in mDeltas.
+	 */
+	private final int[] mBlockOffsets;
+
+	/**
+	 * per range: gap from the previous range (omitted for the first of a block),
+	 * then width, the count of numbers it holds.
+	 */
+	private final byte[] mDeltas;
+
+	/**
+	 * vendor ordinals, two per byte, low nibble first.
+	 */
+	private final byte[] mCardTypes;
+
+	/**
+	 * @param source
+	 *          ranges to pack, ordered by low bound and not overlapping, as every
+	 *          RangeTable is.
+	 */
+	public PackedRangeTable(RangeTable source) {
+		if (CARD_TYPES.length > 16) {
+			throw new IllegalStateException("vendor ordinals no longer fit in four bits");
+		}
+		int n = source.size();
+		int blocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		mVersion = source.getVersion();
+		mSize = n;
+		mBlockLows = new long[blocks];
+		mBlockOffsets = new int[blocks];
+		mCardTypes = new byte[(n + 1) / 2];
+		// worst case two raw 10 byte varints per range
+		byte[] deltas = new byte[n * 20];
+		int length = 0;
+		for (int i = 0; i < n; i++) {
+			long low = source.low(i);
+			long high = source.high(i);
+			if (i % BLOCK_SIZE == 0) {
+				mBlockLows[i / BLOCK_SIZE] = low;
+				mBlockOffsets[i / BLOCK_SIZE] = length;
+			} else {
+				length = writeDelta(deltas, length, low - source.high(i - 1) - 1);
+			}
+			// a whole prefix's worth of numbers, so round where high - low is not
+			length = writeDelta(deltas, length, high - low + 1);
+			mCardTypes[i >> 1] |= source.cardType(i).ordinal() << ((i & 1) << 2);
+		}
+		mDeltas = Arrays.copyOf(deltas, length);
+	}
+
+	@Override
+	public int getVersion() {
+		return mVersion;
+	}
+
+	@Override
+	public CardType matchCardType(long creditCardNumber) {
+		int i = indexOf(creditCardNumber);
+		return i < 0 ? CardType.UNKNOWN_CARD : cardType(i);
+	}
+
+	@Override
+	public int indexOf(long creditCardNumber) {
+		// last block starting at or below the number
+		int lowBlock = 0;
+		int highBlock = mBlockLows.length - 1;
+		while (lowBlock <= highBlock) {
+			int mid = (lowBlock + highBlock) >>> 1;
+			if (mBlockLows[mid] <= creditCardNumber) {
+				lowBlock = mid + 1;
+			} else {
+				highBlock = mid - 1;
+			}
+		}
+		if (highBlock < 0) {
+			return -1;
+		}
+		int first = highBlock * BLOCK_SIZE;
+		int last = Math.min(first + BLOCK_SIZE, mSize);
+		int offset = mBlockOffsets[highBlock];
+		long low = mBlockLows[highBlock];
+		for (int i = first; i < last; i++) {
+			if (i != first) {
+				long gap = readDelta(offset);
+				offset = skipDelta(offset);
+				low += gap + 1;
+			}
+			if (creditCardNumber < low) {
+				return -1;
+			}
+			long high = low + readDelta(offset) - 1;
+			offset = skipDelta(offset);
+			if (creditCardNumber <= high) {
+				return i;
+			}
+			low = high;
+		}
+		return -1;
+	}
+
+	@Override
+	public int size() {
+		return mSize;
+	}
+
+	@Override
+	public long low(int i) {
+		int block = i / BLOCK_SIZE;
+		int offset = mBlockOffsets[block];
+		long low = mBlockLows[block];
+		for (int j = block * BLOCK_SIZE; j < i; j++) {
+			if (j % BLOCK_SIZE != 0) {
+				// gap before range j
+				offset = skipDelta(offset);
+			}
+			// width of range j, then the gap to the next
+			low += readDelta(offset);
+			offset = skipDelta(offset);
+			low += readDelta(offset);
+		}
+		return low;
+	}
+
+	@Override
+	public long high(int i) {
+		int block = i / BLOCK_SIZE;
+		int offset = mBlockOffsets[block];
+		for (int j = block * BLOCK_SIZE; j < i; j++) {
+			if (j % BLOCK_SIZE != 0) {
+				offset = skipDelta(offset);
+			}
+			offset = skipDelta(offset);
+		}
+		if (i % BLOCK_SIZE != 0) {
+			offset = skipDelta(offset);
+		}
+		return low(i) + readDelta(offset) - 1;
+	}
+
+	@Override
+	public CardType cardType(int i) {
+		return CARD_TYPES[(mCardTypes[i >> 1] >> ((i & 1) << 2)) & 0xF];
+	}
+
+	@Override
+	public long footprintBytes() {
+		// object and four array headers, then the arrays
+		return 16 + 4 * 16 + mBlockLows.length * (8 + 4) + mDeltas.length + mCardTypes.length;
+	}
+
+	/**
+	 * Writes a delta as varint(mantissa << 5 | exponent) with the exponent as
+	 * large as possible, or as a RAW flag followed by varint(delta).
+	 *
+	 * @return offset just past what was written.
+	 */
+	private static int writeDelta(byte[] out, int offset, long delta) {
+		int exponent = 0;
+		long mantissa = delta;
+		while (mantissa != 0 && mantissa % 10 == 0 && exponent < POWERS_OF_TEN.length - 1) {
+			mantissa /= 10;
+			exponent++;
+		}
+		if (mantissa >>> 58 != 0) {
+			offset = writeVarint(out, offset, RAW);
+			return writeVarint(out, offset, delta);
+		}
+		return writeVarint(out, offset, mantissa << 5 | exponent);
+	}
+
+	private static int writeVarint(byte[] out, int offset, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out[offset++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		out[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * @return the delta starting at offset.
+	 */
+	private long readDelta(int offset) {
+		long packed = readVarint(offset);
+		int exponent = (int) (packed & 0x1F);
+		if (exponent == RAW) {
+			return readVarint(skipVarint(offset));
+		}
+		return (packed >>> 5) * POWERS_OF_TEN[exponent];
+	}
+
+	/**
+	 * @return offset just past the delta starting at offset.
+	 */
+	private int skipDelta(int offset) {
+		if ((readVarint(offset) & 0x1F) == RAW) {
+			offset = skipVarint(offset);
+		}
+		return skipVarint(offset);
+	}
+
+	private long readVarint(int offset) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = mDeltas[offset++];
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	private int skipVarint(int offset) {
+		while (mDeltas[offset++] < 0) {
+			// continuation byte
+		}
+		return offset;
+	}
+
+}
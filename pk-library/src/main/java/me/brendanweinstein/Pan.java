@@ -0,0 +1,334 @@
+package me.brendanweinstein;
+
+/**
+ * Immutable card number of 12 to 19 digits, held as packed BCD in two longs so
+ * it never has to pass through a String.
+ *
+ * The last 16 digits take four bits each in mLow, check digit lowest. Any
+ * digits before those sit in the low bits of mHigh, with the length above
+ * them in the top byte. Lead zeros are kept, so a Pan is a string of digits
+ * rather than a number; two Pans are equal only if they have the same digits
+ * and length.
+ *
+ * Parsing, the Luhn check and prefix extraction work on the packed digits and
+ * allocate nothing. As a CharSequence it reads back its digits as chars, so it
+ * can go wherever card number text does without being turned into a String.
+ */
+public final class Pan implements Comparable<Pan>, CharSequence {
+
+	/**
+	 * fewest digits a Pan may have.
+	 */
+	public static final int MIN_LENGTH = 12;
+
+	/**
+	 * most digits a Pan may have.
+	 */
+	public static final int MAX_LENGTH = 19;
+
+	private static final long LOW_NIBBLES = 0x0F0F0F0F0F0F0F0FL;
+
+	private static final long ADD_3 = 0x0303030303030303L;
+
+	private static final long LOW_BITS = 0x0101010101010101L;
+
+	/**
+	 * length in the top byte, then the digits before the last 16.
+	 */
+	private final long mHigh;
+
+	/**
+	 * last 16 digits.
+	 */
+	private final long mLow;
+
+	private Pan(long high, long low) {
+		mHigh = high;
+		mLow = low;
+	}
+
+	/**
+	 * Parses a card number. Spaces and dashes are skipped.
+	 *
+	 * @return the Pan, or null if the text holds some other character or the
+	 *         wrong number of digits.
+	 */
+	public static Pan parse(CharSequence creditCardNumber) {
+		return parse(creditCardNumber, 0, creditCardNumber.length());
+	}
+
+	/**
+	 * @see #parse(CharSequence)
+	 */
+	public static Pan parse(CharSequence creditCardNumber, int offset, int length) {
+		long high = 0;
+		long low = 0;
+		int digits = 0;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			char c = creditCardNumber.charAt(i);
+			if ('0' <= c && c <= '9') {
+				if (++digits > MAX_LENGTH) {
+					return null;
+				}
+				high = high << 4 | low >>> 60;
+				low = low << 4 | (c - '0');
+			} else if (c != ' ' && c != '-') {
+				return null;
+			}
+		}
+		return digits < MIN_LENGTH ? null : new Pan((long) digits << 56 | high, low);
+	}
+
+	/**
+	 * @see #parse(CharSequence)
+	 */
+	public static Pan parse(char[] creditCardNumber, int offset, int length) {
+		long high = 0;
+		long low = 0;
+		int digits = 0;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			char c = creditCardNumber[i];
+			if ('0' <= c && c <= '9') {
+				if (++digits > MAX_LENGTH) {
+					return null;
+				}
+				high = high << 4 | low >>> 60;
+				low = low << 4 | (c - '0');
+			} else if (c != ' ' && c != '-') {
+				return null;
+			}
+		}
+		return digits < MIN_LENGTH ? null : new Pan((long) digits << 56 | high, low);
+	}
+
+	/**
+	 * Parses a card number held as ASCII bytes.
+	 *
+	 * @see #parse(CharSequence)
+	 */
+	public static Pan parse(byte[] creditCardNumber, int offset, int length) {
+		long high = 0;
+		long low = 0;
+		int digits = 0;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			int c = creditCardNumber[i];
+			if ('0' <= c && c <= '9') {
+				if (++digits > MAX_LENGTH) {
+					return null;
+				}
+				high = high << 4 | low >>> 60;
+				low = low << 4 | (c - '0');
+			} else if (c != ' ' && c != '-') {
+				return null;
+			}
+		}
+		return digits < MIN_LENGTH ? null : new Pan((long) digits << 56 | high, low);
+	}
+
+	/**
+	 * @param creditCardNumber
+	 *          number on card, with no lead zeros.
+	 * @throws IllegalArgumentException
+	 *           if the number has fewer than MIN_LENGTH digits.
+	 */
+	public static Pan valueOf(long creditCardNumber) {
+		if (creditCardNumber < 100000000000L) {
+			throw new IllegalArgumentException("card number " + creditCardNumber + " is shorter than " + MIN_LENGTH + " digits");
+		}
+		long high = 0;
+		long low = 0;
+		int digits = 0;
+		for (long n = creditCardNumber; n != 0; n /= 10) {
+			int shift = digits * 4;
+			if (digits < 16) {
+				low |= (n % 10) << shift;
+			} else {
+				high |= (n % 10) << (shift - 64);
+			}
+			digits++;
+		}
+		return new Pan((long) digits << 56 | high, low);
+	}
+
+	/**
+	 * @return number of digits.
+	 */
+	@Override
+	public int length() {
+		return (int) (mHigh >>> 56);
+	}
+
+	/**
+	 * @param i
+	 *          index of the digit, counting from 0 at the left.
+	 *
+	 * @return the digit, 0 to 9.
+	 */
+	public int digitAt(int i) {
+		int place = length() - 1 - i;
+		if (place < 0 || i < 0) {
+			throw new IndexOutOfBoundsException("digit " + i + " of " + length());
+		}
+		return place < 16 ? (int) (mLow >>> (place * 4)) & 0xF : (int) (mHigh >>> ((place - 16) * 4)) & 0xF;
+	}
+
+	/**
+	 * @return digit i as a char, '0' to '9'.
+	 */
+	@Override
+	public char charAt(int i) {
+		return (char) ('0' + digitAt(i));
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return toString().substring(start, end);
+	}
+
+	/**
+	 * @param digits
+	 *          how many leading digits, up to 18, e.g. 6 or 8 for a BIN.
+	 *
+	 * @return value of the leading digits.
+	 */
+	public long prefix(int digits) {
+		if (digits < 0 || digits > 18 || digits > length()) {
+			throw new IllegalArgumentException("no " + digits + " digit prefix of a " + length() + " digit number");
+		}
+		long value = 0;
+		for (int i = 0; i < digits; i++) {
+			value = value * 10 + digitAt(i);
+		}
+		return value;
+	}
+
+	/**
+	 * @param digits
+	 *          how many trailing digits, up to 16, e.g. 4 for display.
+	 *
+	 * @return value of the trailing digits.
+	 */
+	public long suffix(int digits) {
+		if (digits < 0 || digits > 16 || digits > length()) {
+			throw new IllegalArgumentException("no " + digits + " digit suffix of a " + length() + " digit number");
+		}
+		long value = 0;
+		for (int place = digits - 1; place >= 0; place--) {
+			value = value * 10 + ((mLow >>> (place * 4)) & 0xF);
+		}
+		return value;
+	}
+
+	/**
+	 * @return value of the number, or -1 if it does not fit in a long, as 19
+	 *         digit numbers from 9223372036854775808 up do not.
+	 */
+	public long longValue() {
+		int length = length();
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			int digit = digitAt(i);
+			if (value > (Long.MAX_VALUE - digit) / 10) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * @return true if the check digit is right. Says nothing of the prefix or
+	 *         length; see ValidateCreditCard.isValid(Pan).
+	 */
+	public boolean isLuhnValid() {
+		// counting from the check digit at place 0, each byte of mLow holds an
+		// undoubled place in its low nibble and a doubled one in its high
+		// nibble, and the same goes for the digits in mHigh
+		int checksum = luhnSum(mLow) + luhnSum(mHigh & 0xFFF);
+		return checksum % 10 == 0;
+	}
+
+	/**
+	 * Writes the digits, with no separators.
+	 *
+	 * @return offset just past the last digit written.
+	 */
+	public int getDigits(char[] dst, int offset) {
+		int length = length();
+		for (int i = 0; i < length; i++) {
+			dst[offset++] = (char) ('0' + digitAt(i));
+		}
+		return offset;
+	}
+
+	/**
+	 * @return the length and leading digits, as packed; never 0.
+	 */
+	long high() {
+		return mHigh;
+	}
+
+	/**
+	 * @return the last 16 digits, as packed.
+	 */
+	long low() {
+		return mLow;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Pan)) {
+			return false;
+		}
+		Pan other = (Pan) o;
+		return mHigh == other.mHigh && mLow == other.mLow;
+	}
+
+	@Override
+	public int hashCode() {
+		long h = mHigh * 31 + mLow;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Orders by length, then digit by digit; numeric order for numbers without
+	 * lead zeros.
+	 */
+	@Override
+	public int compareTo(Pan other) {
+		if (mHigh != other.mHigh) {
+			// length in the top byte keeps mHigh positive
+			return mHigh < other.mHigh ? -1 : 1;
+		}
+		if (mLow != other.mLow) {
+			// unsigned comparison
+			return mLow + Long.MIN_VALUE < other.mLow + Long.MIN_VALUE ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the digits. Mind where it ends up; see CardNumberFormatter for
+	 *         display.
+	 */
+	@Override
+	public String toString() {
+		char[] digits = new char[length()];
+		getDigits(digits, 0);
+		return new String(digits);
+	}
+
+	/**
+	 * Luhn sum of the BCD digits in a word, the lowest at an undoubled place.
+	 */
+	private static int luhnSum(long bcd) {
+		long undoubled = bcd & LOW_NIBBLES;
+		long toDouble = (bcd >>> 4) & LOW_NIBBLES;
+		// 2d, less 9 where d >= 5, i.e. where d + 3 reaches 8
+		long fives = ((toDouble + ADD_3) >>> 3) & LOW_BITS;
+		long doubled = (toDouble << 1) - fives * 9;
+		// each byte now at most 18, so the eight add up without carrying over
+		return (int) (((undoubled + doubled) * LOW_BITS) >>> 56);
+	}
+
+}
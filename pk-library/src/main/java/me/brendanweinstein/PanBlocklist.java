@@ -0,0 +1,296 @@
+package me.brendanweinstein;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Card numbers that must be refused, such as reported stolen cards, looked up
+ * in a memory mapped file.
+ *
+ * The file holds an open addressing hash table of Pans in their packed form,
+ * probed linearly, with a blocked Bloom filter in front. A number not on the
+ * list, the usual case, is nearly always turned away by the filter, which
+ * keeps every bit for a number within one 64 byte block, so one cache line.
+ * Opening reads only the header; the rest is paged in by the OS as lookups
+ * touch it and shared by every process mapping the same file, and the heap
+ * does not grow with the list.
+ *
+ * Layout, big-endian:
+ *
+ * <pre>
+ * int    MAGIC
+ * short  FORMAT_VERSION
+ * int    data version
+ * int    entry count
+ * int    Bloom block count b
+ * int    slot count s
+ * zeros to HEADER_SIZE
+ * b x    64 byte Bloom block
+ * s x    long packed length and leading digits, 0 for an empty slot
+ *        long packed last 16 digits
+ * </pre>
+ *
+ * Lookups are thread safe.
+ */
+public final class PanBlocklist implements Closeable {
+
+	/**
+	 * "PKBL"
+	 */
+	public static final int MAGIC = 0x504B424C;
+
+	public static final int FORMAT_VERSION = 1;
+
+	/**
+	 * most numbers a list can hold, so the file can be mapped as one buffer.
+	 */
+	public static final int MAX_ENTRIES = 80 * 1000 * 1000;
+
+	private static final int HEADER_SIZE = 64;
+
+	private static final int BLOCK_SIZE = 64;
+
+	private static final int SLOT_SIZE = 16;
+
+	/**
+	 * Bloom filter bits set per number, nine bits of hash each.
+	 */
+	private static final int BLOOM_HASHES = 6;
+
+	/**
+	 * Bloom filter bits per number, for under one percent false positives.
+	 */
+	private static final int BLOOM_BITS_PER_ENTRY = 12;
+
+	private final ByteBuffer mData;
+	private final Closeable mFile;
+	private final int mVersion;
+	private final int mEntries;
+	private final int mBlocks;
+	private final int mSlots;
+	private final int mSlotsOffset;
+
+	/**
+	 * @param data
+	 *          the list, e.g. a mapped file. Its position and order are left
+	 *          alone, and its contents must not change.
+	 * @throws IOException
+	 *           if data does not hold a valid list.
+	 */
+	public PanBlocklist(ByteBuffer data) throws IOException {
+		this(data, null);
+	}
+
+	private PanBlocklist(ByteBuffer data, Closeable file) throws IOException {
+		ByteBuffer in = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+		try {
+			if (in.getInt() != MAGIC) {
+				throw new IOException("not a card blocklist");
+			}
+			int format = in.getShort();
+			if (format != FORMAT_VERSION) {
+				throw new IOException("unsupported card blocklist format " + format);
+			}
+			mVersion = in.getInt();
+			mEntries = in.getInt();
+			mBlocks = in.getInt();
+			mSlots = in.getInt();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated card blocklist");
+		}
+		// in long, as a corrupt block or slot count would overflow the offsets
+		if (mBlocks <= 0 || mEntries < 0 || mSlots <= mEntries
+				|| HEADER_SIZE + (long) mBlocks * BLOCK_SIZE + (long) mSlots * SLOT_SIZE > in.limit()) {
+			throw new IOException("truncated card blocklist");
+		}
+		mSlotsOffset = HEADER_SIZE + mBlocks * BLOCK_SIZE;
+		mData = in;
+		mFile = file;
+	}
+
+	/**
+	 * Memory maps a list file read-only.
+	 */
+	public static PanBlocklist open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		boolean opened = false;
+		try {
+			long length = raf.length();
+			if (length > Integer.MAX_VALUE) {
+				// map would throw IllegalArgumentException
+				throw new IOException("card blocklist of " + length + " bytes is too large to map");
+			}
+			ByteBuffer data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			PanBlocklist result = new PanBlocklist(data, raf);
+			opened = true;
+			return result;
+		} finally {
+			if (!opened) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * @return version of the list, as written.
+	 */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * @return number of card numbers on the list.
+	 */
+	public int size() {
+		return mEntries;
+	}
+
+	/**
+	 * @return true if the number is on the list.
+	 */
+	public boolean contains(Pan creditCardNumber) {
+		return contains(creditCardNumber.high(), creditCardNumber.low());
+	}
+
+	/**
+	 * Spaces and dashes are skipped. Nothing is allocated.
+	 *
+	 * @return true if the number is on the list; false too if the text is not a
+	 *         card number at all.
+	 */
+	public boolean contains(CharSequence creditCardNumber) {
+		long high = 0;
+		long low = 0;
+		int digits = 0;
+		for (int i = 0, n = creditCardNumber.length(); i < n; i++) {
+			char c = creditCardNumber.charAt(i);
+			if ('0' <= c && c <= '9') {
+				if (++digits > Pan.MAX_LENGTH) {
+					return false;
+				}
+				// packed as Pan packs it
+				high = high << 4 | low >>> 60;
+				low = low << 4 | (c - '0');
+			} else if (c != ' ' && c != '-') {
+				return false;
+			}
+		}
+		return digits >= Pan.MIN_LENGTH && contains((long) digits << 56 | high, low);
+	}
+
+	/**
+	 * Releases the file. The mapping itself goes when the list is collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mFile != null) {
+			mFile.close();
+		}
+	}
+
+	private boolean contains(long high, long low) {
+		long hash = hash(high, low);
+		int block = HEADER_SIZE + scale(hash, mBlocks) * BLOCK_SIZE;
+		long bits = mix(hash);
+		for (int i = 0; i < BLOOM_HASHES; i++, bits >>>= 9) {
+			int bit = (int) bits & 511;
+			if ((mData.getLong(block + (bit >>> 6) * 8) & 1L << (bit & 63)) == 0) {
+				return false;
+			}
+		}
+		for (int slot = scale(hash >>> 32, mSlots);; slot = slot + 1 == mSlots ? 0 : slot + 1) {
+			int offset = mSlotsOffset + slot * SLOT_SIZE;
+			long slotHigh = mData.getLong(offset);
+			if (slotHigh == 0) {
+				return false;
+			}
+			if (slotHigh == high && mData.getLong(offset + 8) == low) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Writes a list. Repeated numbers are stored once. The stream is flushed but
+	 * not closed.
+	 *
+	 * @throws IllegalArgumentException
+	 *           if there are more than MAX_ENTRIES numbers.
+	 */
+	public static void write(int version, Pan[] creditCardNumbers, OutputStream os) throws IOException {
+		if (creditCardNumbers.length > MAX_ENTRIES) {
+			throw new IllegalArgumentException(creditCardNumbers.length + " numbers, more than a list holds");
+		}
+		// three slots for every two numbers keeps probes short
+		int slots = creditCardNumbers.length + creditCardNumbers.length / 2 + 1;
+		int blocks = (int) Math.max(1, ((long) creditCardNumbers.length * BLOOM_BITS_PER_ENTRY + 511) / 512);
+		long[] bloom = new long[blocks * (BLOCK_SIZE / 8)];
+		long[] table = new long[slots * 2];
+		int entries = 0;
+		for (Pan pan : creditCardNumbers) {
+			long high = pan.high();
+			long low = pan.low();
+			long hash = hash(high, low);
+			int slot = scale(hash >>> 32, slots);
+			while (table[slot * 2] != 0 && !(table[slot * 2] == high && table[slot * 2 + 1] == low)) {
+				slot = slot + 1 == slots ? 0 : slot + 1;
+			}
+			if (table[slot * 2] != 0) {
+				continue;
+			}
+			table[slot * 2] = high;
+			table[slot * 2 + 1] = low;
+			entries++;
+			int block = scale(hash, blocks) * (BLOCK_SIZE / 8);
+			long bits = mix(hash);
+			for (int i = 0; i < BLOOM_HASHES; i++, bits >>>= 9) {
+				int bit = (int) bits & 511;
+				bloom[block + (bit >>> 6)] |= 1L << (bit & 63);
+			}
+		}
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeShort(FORMAT_VERSION);
+		out.writeInt(version);
+		out.writeInt(entries);
+		out.writeInt(blocks);
+		out.writeInt(slots);
+		out.write(new byte[HEADER_SIZE - 22]);
+		for (long word : bloom) {
+			out.writeLong(word);
+		}
+		for (long word : table) {
+			out.writeLong(word);
+		}
+		out.flush();
+	}
+
+	private static long hash(long high, long low) {
+		return mix(high * 0x9E3779B97F4A7C15L ^ low);
+	}
+
+	/**
+	 * MurmurHash3's 64 bit finalizer.
+	 */
+	private static long mix(long h) {
+		h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+		h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+
+	/**
+	 * @return the low 32 bits of hash scaled to 0 up to n, exclusive.
+	 */
+	private static int scale(long hash, int n) {
+		return (int) (((hash & 0xFFFFFFFFL) * n) >>> 32);
+	}
+
+}
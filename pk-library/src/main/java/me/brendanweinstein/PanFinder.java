@@ -0,0 +1,186 @@
+package me.brendanweinstein;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds card numbers in ASCII text such as log files: 13 to 19 digits, written
+ * straight or in groups split by single spaces or dashes, that pass Luhn and
+ * fall in a known range. It is parseDirtyLong turned around, pulling numbers
+ * out of text rather than text out of a number.
+ *
+ * Text is read a run at a time, a run being digits joined by single
+ * separators. A card number may start at the start of any group of a run and
+ * must end at the end of one, so "order 12345 4111 1111 1111 1111" finds the
+ * card, while a 20 digit id written straight finds nothing. Once a number is
+ * found, later ones overlapping it are not reported.
+ *
+ * A finder holds the digits of the run it is in and allocates nothing while
+ * scanning; give each thread its own.
+ */
+public final class PanFinder {
+
+	/**
+	 * Told of each card number found.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param start
+		 *          offset of the first digit.
+		 * @param end
+		 *          offset just past the last digit.
+		 */
+		public void onPan(long start, long end, CardType cardType);
+	}
+
+	/**
+	 * ring size for the digits and groups of a run kept, a power of two above
+	 * the most digits a card number may have.
+	 */
+	private static final int RING = 32;
+
+	private final byte[] mDigits = new byte[RING];
+
+	private final int[] mOffsets = new int[RING];
+
+	/**
+	 * index into the run's digits at which each of its recent groups starts.
+	 */
+	private final int[] mGroupStarts = new int[RING];
+
+	private CardPrefixAutomaton mAutomaton;
+
+	private int mFound;
+
+	/**
+	 * Finds the card numbers in text that start between from and to. A run
+	 * under way at from belongs to whoever scanned the text before from, and is
+	 * skipped; a run under way at to is followed up to limit. So a large text
+	 * split into pieces, each scanned with limit a little past to, has every
+	 * number found once.
+	 *
+	 * @param text
+	 *          ASCII text, read with absolute gets so its position is untouched.
+	 * @param limit
+	 *          where a run under way at to is cut off, at most text.limit().
+	 * @param base
+	 *          added to offsets into text before they go to the listener, e.g.
+	 *          where text starts in a file.
+	 *
+	 * @return how many card numbers were found.
+	 */
+	public int find(ByteBuffer text, int from, int to, int limit, long base, Listener listener) {
+		mAutomaton = ValidateCreditCard.getPrefixAutomaton();
+		mFound = 0;
+		int i = from;
+		if (from > 0 && (isDigit(text.get(from - 1)) || from > 1 && isSeparator(text.get(from - 1)) && isDigit(text.get(from - 2)))) {
+			i = skipRun(text, from, limit);
+		}
+		while (i < to) {
+			i = isDigit(text.get(i)) ? run(text, i, limit, base, listener) : i + 1;
+		}
+		return mFound;
+	}
+
+	/**
+	 * @see #find(ByteBuffer, int, int, int, long, Listener)
+	 */
+	public int find(byte[] text, int offset, int length, Listener listener) {
+		return find(ByteBuffer.wrap(text), offset, offset + length, offset + length, 0, listener);
+	}
+
+	/**
+	 * Reads the run starting at i, checking the numbers that end with each
+	 * group as it closes.
+	 *
+	 * @return offset just past the run.
+	 */
+	private int run(ByteBuffer text, int i, int limit, long base, Listener listener) {
+		int digits = 0;
+		int groups = 0;
+		int firstGroup = 0;
+		// digits before this may not start a number, as they belong to one found
+		int claimed = 0;
+		while (true) {
+			mGroupStarts[groups++ & (RING - 1)] = digits;
+			byte b;
+			while (i < limit && isDigit(b = text.get(i))) {
+				mDigits[digits & (RING - 1)] = (byte) (b - '0');
+				mOffsets[digits & (RING - 1)] = i;
+				digits++;
+				i++;
+			}
+			while (firstGroup < groups && digits - mGroupStarts[firstGroup & (RING - 1)] > ValidateCreditCard.MAX_DIGITS) {
+				firstGroup++;
+			}
+			for (int g = firstGroup; g < groups; g++) {
+				int start = mGroupStarts[g & (RING - 1)];
+				if (digits - start < ValidateCreditCard.MIN_DIGITS) {
+					break;
+				}
+				if (start < claimed) {
+					continue;
+				}
+				CardType cardType = check(start, digits);
+				if (cardType != null) {
+					listener.onPan(base + mOffsets[start & (RING - 1)], base + mOffsets[(digits - 1) & (RING - 1)] + 1, cardType);
+					mFound++;
+					claimed = digits;
+					break;
+				}
+			}
+			if (i + 1 < limit && isSeparator(text.get(i)) && isDigit(text.get(i + 1))) {
+				i++;
+			} else {
+				return i;
+			}
+		}
+	}
+
+	/**
+	 * @return the vendor if the digits from start up to end are a valid card
+	 *         number, else null.
+	 */
+	private CardType check(int start, int end) {
+		CardPrefixAutomaton automaton = mAutomaton;
+		int state = CardPrefixAutomaton.START;
+		int undoubled = 0;
+		int doubled = 0;
+		for (int k = start; k < end; k++) {
+			int digit = mDigits[k & (RING - 1)];
+			int sum = doubled + digit;
+			doubled = undoubled + ValidateCreditCard.DOUBLED[digit];
+			undoubled = sum;
+			state = automaton.next(state, digit);
+		}
+		if (undoubled % 10 != 0) {
+			return null;
+		}
+		CardType cardType = automaton.cardType(state, end - start);
+		return cardType.isError() ? null : cardType;
+	}
+
+	/**
+	 * @return offset just past the run under way at i.
+	 */
+	private static int skipRun(ByteBuffer text, int i, int limit) {
+		while (i < limit) {
+			byte b = text.get(i);
+			if (isDigit(b) || isSeparator(b) && i + 1 < limit && isDigit(text.get(i - 1)) && isDigit(text.get(i + 1))) {
+				i++;
+			} else {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private static boolean isDigit(byte b) {
+		return '0' <= b && b <= '9';
+	}
+
+	private static boolean isSeparator(byte b) {
+		return b == ' ' || b == '-';
+	}
+
+}
@@ -0,0 +1,177 @@
+package me.brendanweinstein;
+
+/**
+ * Writes the masked forms of card numbers that are safe to show or store: the
+ * last four digits, a short form such as "**** 1234" with BULLET for the
+ * stars, and the first six and last four with the rest masked,
+ * "411111******1111".
+ *
+ * Everything is written into a destination the caller owns and can reuse, and
+ * nothing is allocated. Anything in a text source other than digits, such as
+ * spaces or dashes, is skipped. The bulk forms work on fixed width records of
+ * ASCII digits, such as a column read straight from a file, or on numbers
+ * already parsed to Pan, read from their packed digits with no text scan.
+ */
+public final class PanMasker {
+
+	/**
+	 * the usual mask character for display.
+	 */
+	public static final char BULLET = '\u2022';
+
+	/**
+	 * digits of a BIN, left showing by the first-6/last-4 form.
+	 */
+	private static final int SHOWN_PREFIX = 6;
+
+	/**
+	 * digits left showing at the end.
+	 */
+	private static final int SHOWN_SUFFIX = 4;
+
+	private PanMasker() {
+	}
+
+	/**
+	 * Writes the last four digits, or all of them if there are fewer.
+	 *
+	 * @return offset just past the last char written.
+	 */
+	public static int writeLast4(CharSequence number, char[] dst, int offset) {
+		// find where the last four digits start, then copy them in order
+		int start = number.length();
+		for (int digits = 0; start > 0 && digits < SHOWN_SUFFIX; start--) {
+			if (isDigit(number.charAt(start - 1))) {
+				digits++;
+			}
+		}
+		for (int i = start, n = number.length(); i < n; i++) {
+			char c = number.charAt(i);
+			if (isDigit(c)) {
+				dst[offset++] = c;
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Writes four mask chars, a separator and the last four digits, e.g.
+	 * "**** 1234".
+	 *
+	 * @return offset just past the last char written.
+	 */
+	public static int writeShortMask(CharSequence number, char mask, char separator, char[] dst, int offset) {
+		for (int i = 0; i < SHOWN_SUFFIX; i++) {
+			dst[offset++] = mask;
+		}
+		dst[offset++] = separator;
+		return writeLast4(number, dst, offset);
+	}
+
+	/**
+	 * Writes the digits with all but the first six and last four replaced by
+	 * mask, e.g. "411111******1111". Separators are dropped. Numbers of ten
+	 * digits or fewer are masked whole, as no digit can be shown without
+	 * overlap.
+	 *
+	 * @return offset just past the last char written.
+	 */
+	public static int writeFirst6Last4(CharSequence number, char mask, char[] dst, int offset) {
+		int length = number.length();
+		int digits = 0;
+		for (int i = 0; i < length; i++) {
+			if (isDigit(number.charAt(i))) {
+				digits++;
+			}
+		}
+		int shownFrom = digits - SHOWN_SUFFIX;
+		boolean showAny = digits > SHOWN_PREFIX + SHOWN_SUFFIX;
+		int digit = 0;
+		for (int i = 0; i < length; i++) {
+			char c = number.charAt(i);
+			if (isDigit(c)) {
+				dst[offset++] = showAny && (digit < SHOWN_PREFIX || digit >= shownFrom) ? c : mask;
+				digit++;
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Masks fixed width records of ASCII digits to the first-6/last-4 form.
+	 * Bytes other than digits, such as padding, are copied unchanged and do not
+	 * count as digits. Source and destination may be the same array, to mask in
+	 * place.
+	 *
+	 * @param src
+	 *          records, one every stride bytes from srcOffset.
+	 * @param count
+	 *          number of records.
+	 * @param mask
+	 *          ASCII mask byte, e.g. '*'.
+	 * @param dst
+	 *          receives the masked records at the same stride from dstOffset.
+	 */
+	public static void maskFirst6Last4(byte[] src, int srcOffset, int stride, int count, byte mask, byte[] dst, int dstOffset) {
+		for (int record = 0; record < count; record++) {
+			int from = srcOffset + record * stride;
+			int to = dstOffset + record * stride;
+			int digits = 0;
+			for (int i = 0; i < stride; i++) {
+				if (isDigit(src[from + i])) {
+					digits++;
+				}
+			}
+			int shownFrom = digits - SHOWN_SUFFIX;
+			boolean showAny = digits > SHOWN_PREFIX + SHOWN_SUFFIX;
+			int digit = 0;
+			for (int i = 0; i < stride; i++) {
+				byte b = src[from + i];
+				if (isDigit(b)) {
+					dst[to + i] = showAny && (digit < SHOWN_PREFIX || digit >= shownFrom) ? b : mask;
+					digit++;
+				} else {
+					dst[to + i] = b;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Masks parsed numbers to the first-6/last-4 form as fixed width ASCII
+	 * records, each left aligned and padded with spaces to stride bytes, the
+	 * layout the record form above takes.
+	 *
+	 * @param pans
+	 *          numbers, count of them from offset.
+	 * @param mask
+	 *          ASCII mask byte, e.g. '*'.
+	 * @param dst
+	 *          receives one record every stride bytes from dstOffset.
+	 * @throws IllegalArgumentException
+	 *           if a number is longer than stride.
+	 */
+	public static void maskFirst6Last4(Pan[] pans, int offset, int count, byte mask, byte[] dst, int dstOffset, int stride) {
+		for (int record = 0; record < count; record++) {
+			Pan pan = pans[offset + record];
+			int digits = pan.length();
+			if (digits > stride) {
+				throw new IllegalArgumentException("a " + digits + " digit number does not fit stride " + stride);
+			}
+			int to = dstOffset + record * stride;
+			int shownFrom = digits - SHOWN_SUFFIX;
+			boolean showAny = digits > SHOWN_PREFIX + SHOWN_SUFFIX;
+			for (int digit = 0; digit < digits; digit++) {
+				dst[to + digit] = showAny && (digit < SHOWN_PREFIX || digit >= shownFrom) ? (byte) ('0' + pan.digitAt(digit)) : mask;
+			}
+			for (int i = digits; i < stride; i++) {
+				dst[to + i] = ' ';
+			}
+		}
+	}
+
+	private static boolean isDigit(int c) {
+		return '0' <= c && c <= '9';
+	}
+
+}
@@ -0,0 +1,82 @@
+package me.brendanweinstein;
+
+/**
+ * A range table together with everything ValidateCreditCard derives from it:
+ * the prefix automaton and the six and eight digit BIN tables.
+ *
+ * The automaton is small and every validation uses it, so it is built when the
+ * snapshot is made. The BIN tables take about a megabyte and only the bulk BIN
+ * lookups use them, so each is built on first use, once per snapshot; apps
+ * that never call them do not pay for the memory. Either way readers that take
+ * one snapshot see tables that agree with each other and one version. Safe to
+ * share between threads.
+ *
+ * @see ValidateCreditCard#getSnapshot()
+ */
+public final class RangeSnapshot {
+
+	private final RangeTable mRanges;
+	private final CardPrefixAutomaton mPrefixAutomaton;
+	private volatile BinTable mSixDigitBins;
+	private volatile BinTable mEightDigitBins;
+
+	/**
+	 * Builds the prefix automaton for ranges; the BIN tables wait for their first
+	 * lookup.
+	 */
+	public RangeSnapshot(RangeTable ranges) {
+		if (ranges == null) {
+			throw new NullPointerException("ranges");
+		}
+		mRanges = ranges;
+		mPrefixAutomaton = CardPrefixAutomaton.compile(ranges);
+	}
+
+	/**
+	 * @return version of the range data, see RangeTable.getVersion.
+	 */
+	public int getVersion() {
+		return mRanges.getVersion();
+	}
+
+	public RangeTable getRanges() {
+		return mRanges;
+	}
+
+	public CardPrefixAutomaton getPrefixAutomaton() {
+		return mPrefixAutomaton;
+	}
+
+	/**
+	 * @return the six digit BIN table, built by the first caller.
+	 */
+	public BinTable getSixDigitBins() {
+		BinTable bins = mSixDigitBins;
+		if (bins == null) {
+			synchronized (this) {
+				bins = mSixDigitBins;
+				if (bins == null) {
+					bins = mSixDigitBins = BinTable.sixDigit(mRanges);
+				}
+			}
+		}
+		return bins;
+	}
+
+	/**
+	 * @return the eight digit BIN table, built by the first caller.
+	 */
+	public BinTable getEightDigitBins() {
+		BinTable bins = mEightDigitBins;
+		if (bins == null) {
+			synchronized (this) {
+				bins = mEightDigitBins;
+				if (bins == null) {
+					bins = mEightDigitBins = BinTable.eightDigit(mRanges);
+				}
+			}
+		}
+		return bins;
+	}
+
+}
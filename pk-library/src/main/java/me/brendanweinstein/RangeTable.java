@@ -0,0 +1,61 @@
+package me.brendanweinstein;
+
+/**
+ * Read-only table of legal card ranges, ordered by low bound, that finds the
+ * vendor of a card number.
+ *
+ * Implementations are immutable and may be shared between threads.
+ *
+ * @see SortedRangeTable
+ * @see PackedRangeTable
+ */
+public interface RangeTable {
+
+	/**
+	 * @return version of the range data the table was built from, 0 for the
+	 *         ranges built into ValidateCreditCard.
+	 */
+	public int getVersion();
+
+	/**
+	 * Finds the range holding a number.
+	 *
+	 * @param creditCardNumber
+	 *          number on card.
+	 *
+	 * @return vendor of the matching range, or UNKNOWN_CARD if no range holds
+	 *         the number.
+	 */
+	public CardType matchCardType(long creditCardNumber);
+
+	/**
+	 * @return index of the range holding the number, or -1 if there is none.
+	 */
+	public int indexOf(long creditCardNumber);
+
+	/**
+	 * @return number of ranges in the table.
+	 */
+	public int size();
+
+	/**
+	 * @return lowest card number of the i-th range, ranges ordered by low bound.
+	 */
+	public long low(int i);
+
+	/**
+	 * @return highest card number of the i-th range.
+	 */
+	public long high(int i);
+
+	/**
+	 * @return vendor of the i-th range.
+	 */
+	public CardType cardType(int i);
+
+	/**
+	 * @return approximate heap taken by the table, in bytes.
+	 */
+	public long footprintBytes();
+
+}
@@ -0,0 +1,157 @@
+package me.brendanweinstein;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads and writes the compiled binary form of a range table, so the ranges can
+ * ship as data rather than code. The compileIinTable task in
+ * pk-library/build.gradle writes the same format from a CSV.
+ *
+ * Layout, big-endian:
+ *
+ * <pre>
+ * int    MAGIC
+ * short  FORMAT_VERSION
+ * int    data version, see RangeTable.getVersion
+ * byte   vendor count v
+ * v x    vendor: short length, then that many ASCII bytes of a CardType name
+ * int    range count n
+ * n x    long low bound, ascending
+ * n x    long high bound
+ * n x    byte index into the vendors
+ * </pre>
+ *
+ * The bounds are bulk copied straight into the arrays of a SortedRangeTable; no
+ * object is built per range.
+ */
+public final class RangeTableFile {
+
+	/**
+	 * "PKIN"
+	 */
+	public static final int MAGIC = 0x504B494E;
+
+	public static final int FORMAT_VERSION = 1;
+
+	private RangeTableFile() {
+	}
+
+	/**
+	 * Reads a table from a stream, such as a packaged resource. The stream is
+	 * read to the end but not closed.
+	 *
+	 * @throws IOException
+	 *           if the stream fails or does not hold a valid table.
+	 */
+	public static SortedRangeTable read(InputStream in) throws IOException {
+		byte[] bytes = new byte[4096];
+		int length = 0;
+		int read;
+		while ((read = in.read(bytes, length, bytes.length - length)) != -1) {
+			length += read;
+			if (length == bytes.length) {
+				byte[] bigger = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, bigger, 0, length);
+				bytes = bigger;
+			}
+		}
+		return read(ByteBuffer.wrap(bytes, 0, length));
+	}
+
+	/**
+	 * Reads a table from a buffer, e.g. a memory mapped file. The buffer's
+	 * position and order are left alone.
+	 *
+	 * @throws IOException
+	 *           if the buffer does not hold a valid table.
+	 */
+	public static SortedRangeTable read(ByteBuffer buffer) throws IOException {
+		ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		try {
+			if (in.getInt() != MAGIC) {
+				throw new IOException("not a range table");
+			}
+			int format = in.getShort();
+			if (format != FORMAT_VERSION) {
+				throw new IOException("unsupported range table format " + format);
+			}
+			int version = in.getInt();
+			CardType[] vendors = new CardType[in.get() & 0xFF];
+			for (int i = 0; i < vendors.length; i++) {
+				byte[] name = new byte[in.getShort() & 0xFFFF];
+				in.get(name);
+				vendors[i] = vendorNamed(new String(name, "US-ASCII"));
+			}
+			int n = in.getInt();
+			if (n < 0 || n > in.remaining() / 17) {
+				throw new IOException("bad range count " + n);
+			}
+			long[] lows = new long[n];
+			long[] highs = new long[n];
+			in.asLongBuffer().get(lows);
+			in.position(in.position() + n * 8);
+			in.asLongBuffer().get(highs);
+			in.position(in.position() + n * 8);
+			CardType[] cardTypes = new CardType[n];
+			for (int i = 0; i < n; i++) {
+				cardTypes[i] = vendors[in.get() & 0xFF];
+			}
+			return new SortedRangeTable(version, lows, highs, cardTypes);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated range table");
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("bad vendor index in range table");
+		} catch (IllegalArgumentException e) {
+			throw new IOException("bad range table: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes a table, e.g. one built from fresh IIN data on a server. The stream
+	 * is flushed but not closed.
+	 */
+	public static void write(RangeTable table, OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeShort(FORMAT_VERSION);
+		out.writeInt(table.getVersion());
+		CardType[] vendors = CardType.values();
+		out.writeByte(vendors.length);
+		for (CardType vendor : vendors) {
+			out.writeShort(vendor.name().length());
+			out.writeBytes(vendor.name());
+		}
+		int n = table.size();
+		out.writeInt(n);
+		for (int i = 0; i < n; i++) {
+			out.writeLong(table.low(i));
+		}
+		for (int i = 0; i < n; i++) {
+			out.writeLong(table.high(i));
+		}
+		for (int i = 0; i < n; i++) {
+			out.writeByte(table.cardType(i).ordinal());
+		}
+		out.flush();
+	}
+
+	/**
+	 * Vendors this build does not know, from a table newer than the code, are
+	 * read as UNKNOWN_CARD, so their ranges never validate.
+	 */
+	private static CardType vendorNamed(String name) {
+		for (CardType cardType : CardType.values()) {
+			if (cardType.name().equals(name)) {
+				return cardType;
+			}
+		}
+		return CardType.UNKNOWN_CARD;
+	}
+
+}
@@ -0,0 +1,172 @@
+package me.brendanweinstein;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Immutable table of legal card ranges, sorted by low bound so the range
+ * holding a number is found by binary search in O(log n) however large the
+ * table grows.
+ *
+ * The bounds live in two parallel primitive arrays rather than one object per
+ * range, and nothing is written after construction, so one table can be shared
+ * by any number of threads without locking.
+ */
+public final class SortedRangeTable implements RangeTable {
+
+	private final int mVersion;
+	private final long[] mLows;
+	private final long[] mHighs;
+	private final CardType[] mCardTypes;
+
+	/**
+	 * @param version
+	 *          version of the range data, see getVersion.
+	 * @param ranges
+	 *          legal card ranges in any order. They may not overlap.
+	 * @throws IllegalArgumentException
+	 *           if a range is empty or two ranges overlap.
+	 */
+	static SortedRangeTable fromRanges(int version, LCR[] ranges) {
+		LCR[] sorted = ranges.clone();
+		Arrays.sort(sorted, new Comparator<LCR>() {
+			@Override
+			public int compare(LCR a, LCR b) {
+				return a.low < b.low ? -1 : (a.low == b.low ? 0 : 1);
+			}
+		});
+		int n = sorted.length;
+		long[] lows = new long[n];
+		long[] highs = new long[n];
+		CardType[] cardTypes = new CardType[n];
+		for (int i = 0; i < n; i++) {
+			lows[i] = sorted[i].low;
+			highs[i] = sorted[i].high;
+			cardTypes[i] = sorted[i].cardType;
+		}
+		return new SortedRangeTable(version, lows, highs, cardTypes);
+	}
+
+	/**
+	 * @return the part of a table that holds numbers of exactly length digits,
+	 *         ranges cut down where they run into other lengths.
+	 */
+	public static SortedRangeTable ofLength(RangeTable source, int length) {
+		long shortest = length <= 1 ? 0 : pow10(length - 1);
+		long longest = length >= 19 ? Long.MAX_VALUE : pow10(length) - 1;
+		int n = source.size();
+		long[] lows = new long[n];
+		long[] highs = new long[n];
+		CardType[] cardTypes = new CardType[n];
+		int kept = 0;
+		for (int i = 0; i < n; i++) {
+			long low = Math.max(source.low(i), shortest);
+			long high = Math.min(source.high(i), longest);
+			if (low <= high) {
+				lows[kept] = low;
+				highs[kept] = high;
+				cardTypes[kept++] = source.cardType(i);
+			}
+		}
+		return new SortedRangeTable(source.getVersion(), Arrays.copyOf(lows, kept), Arrays.copyOf(highs, kept), Arrays.copyOf(
+				cardTypes, kept));
+	}
+
+	private static long pow10(int exponent) {
+		long value = 1;
+		for (int i = 0; i < exponent; i++) {
+			value *= 10;
+		}
+		return value;
+	}
+
+	/**
+	 * Takes ownership of the arrays, which must not be changed afterwards.
+	 * 
+	 * @param version
+	 *          version of the range data, see getVersion.
+	 * @param lows
+	 *          low bounds, ascending.
+	 * @param highs
+	 *          high bounds, parallel to lows.
+	 * @param cardTypes
+	 *          vendors, parallel to lows.
+	 * @throws IllegalArgumentException
+	 *           if a range is empty, or ranges are out of order or overlap.
+	 */
+	SortedRangeTable(int version, long[] lows, long[] highs, CardType[] cardTypes) {
+		if (highs.length != lows.length || cardTypes.length != lows.length) {
+			throw new IllegalArgumentException("bounds and vendors differ in length");
+		}
+		for (int i = 0; i < lows.length; i++) {
+			if (lows[i] > highs[i]) {
+				throw new IllegalArgumentException("empty range " + lows[i] + ".." + highs[i]);
+			}
+			if (i > 0 && lows[i] <= highs[i - 1]) {
+				throw new IllegalArgumentException("range " + lows[i] + ".." + highs[i] + " overlaps or precedes " + lows[i - 1] + ".."
+						+ highs[i - 1]);
+			}
+			if (cardTypes[i] == null) {
+				throw new IllegalArgumentException("no vendor for range " + lows[i] + ".." + highs[i]);
+			}
+		}
+		mVersion = version;
+		mLows = lows;
+		mHighs = highs;
+		mCardTypes = cardTypes;
+	}
+
+	@Override
+	public int getVersion() {
+		return mVersion;
+	}
+
+	@Override
+	public CardType matchCardType(long creditCardNumber) {
+		int i = indexOf(creditCardNumber);
+		return i < 0 ? CardType.UNKNOWN_CARD : mCardTypes[i];
+	}
+
+	@Override
+	public int indexOf(long creditCardNumber) {
+		// find the last range starting at or below the number
+		int low = 0;
+		int high = mLows.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (mLows[mid] <= creditCardNumber) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high >= 0 && creditCardNumber <= mHighs[high] ? high : -1;
+	}
+
+	@Override
+	public int size() {
+		return mLows.length;
+	}
+
+	@Override
+	public long low(int i) {
+		return mLows[i];
+	}
+
+	@Override
+	public long high(int i) {
+		return mHighs[i];
+	}
+
+	@Override
+	public CardType cardType(int i) {
+		return mCardTypes[i];
+	}
+
+	@Override
+	public long footprintBytes() {
+		// object and three array headers, two longs and a reference per range
+		return 16 + 3 * 16 + mLows.length * (8 + 8 + 4);
+	}
+
+}
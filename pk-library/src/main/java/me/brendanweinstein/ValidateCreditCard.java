@@ -27,6 +27,10 @@ package me.brendanweinstein;
 
 import static java.lang.System.out;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Handles calculations to validate credit card numbers and determine which
  * credit card company they belong to.
@@ -57,15 +61,55 @@ public final class ValidateCreditCard {
 	private static final boolean DEBUGGING = false;
 
 	/**
-	 * Used to speed up findMatchingRange by caching the last hit.
+	 * fewest digits a card number may have.
+	 */
+	static final int MIN_DIGITS = 13;
+
+	/**
+	 * most digits a card number may have.
+	 */
+	static final int MAX_DIGITS = 19;
+
+	/**
+	 * scan flag for text holding something other than digits and separators.
+	 * Fails matchCardType as NOT_ENOUGH_DIGITS.
+	 */
+	private static final long MALFORMED = 1L << 4;
+
+	/**
+	 * used in computing checksums, doubles and adds resulting digits. 0->0 1->2
+	 * 2->4 3->6 4->8 5->1 6->3 7->5 8->7 9->9
 	 */
-	private static int cachedLastFind;
+	static final int[] DOUBLED = { 0, 2, 4, 6, 8, 1, 3, 5, 7, 9 };
+
+	/**
+	 * '0' in every byte of a word.
+	 */
+	private static final long ASCII_ZEROS = 0x3030303030303030L;
+
+	/**
+	 * bytes of a 16 digit word pair that sit in doubled Luhn places.
+	 */
+	private static final long DOUBLED_PLACES = 0xFF00FF00FF00FF00L;
+
+	private static final long ADD_123 = 0x7B007B007B007B00L;
+
+	private static final long TOP_BITS = 0x8000800080008000L;
 
 	/**
-	 * ranges of credit card number that belong to each company. buildRanges
-	 * initialises.
+	 * compiled range table packaged beside this class by the compileIinTable
+	 * build task.
 	 */
-	private static LCR[] ranges;
+	private static final String RANGES_RESOURCE = "iin_ranges.bin";
+
+	/**
+	 * ranges of credit card number that belong to each company, with the tables
+	 * derived from them. loadRanges initialises, publishRanges replaces. Each
+	 * snapshot is immutable, so readers only need one volatile read to get
+	 * ranges and tables that agree.
+	 */
+	private static final AtomicReference<RangeSnapshot> snapshot = new AtomicReference<RangeSnapshot>(new RangeSnapshot(
+			loadRanges()));
 
 	// -------------------------- PUBLIC STATIC METHODS --------------------------
 
@@ -80,7 +124,23 @@ public final class ValidateCreditCard {
 	 * @return true if card number is good.
 	 */
 	public static boolean isValid(long creditCardNumber) {
-		CardType cardType = matchCardType(creditCardNumber);
+		return isValid(snapshot.get().getRanges(), creditCardNumber);
+	}
+
+	/**
+	 * Determine if the credit card number is valid against a given range table,
+	 * e.g. a snapshot from getRanges whose version is to be recorded with the
+	 * result.
+	 * 
+	 * @param ranges
+	 *          legal card ranges to check the prefix against.
+	 * @param creditCardNumber
+	 *          number on card.
+	 * 
+	 * @return true if card number is good.
+	 */
+	public static boolean isValid(RangeTable ranges, long creditCardNumber) {
+		CardType cardType = matchCardType(ranges, creditCardNumber);
 		if (cardType.isError()) {
 			return false;
 		} else {
@@ -95,54 +155,210 @@ public final class ValidateCreditCard {
 				 * --------------------------------- 7 + 0 + 6 + 1 + 1 + 2 + 2 + 4 + 7 =
 				 * 30 30 MOD 10 had better = 0
 				 */
-				long number = creditCardNumber;
-				int checksum = 0;
-				// work right to left
-				for (int place = 0; place < 16; place++) {
-					int digit = (int) (number % 10);
-					number /= 10;
-					if ((place & 1) == 0) {
-						// even position (0-based from right), just add digit
-						checksum += digit;
-					} else {// odd position (0-based from right), must double
-									// and add
-						checksum += z(digit);
-					}
-					if (number == 0) {
-						break;
-					}
-				}// end for
-					// good checksum should be 0 mod 10
+				// work right to left, eight digits at a time in int arithmetic
+				// rather than a 64-bit % and / per digit. Eight is even, so each
+				// group starts on an undoubled place just like the lowest.
+				int checksum = luhnSum((int) (creditCardNumber % 100000000L))
+						+ luhnSum((int) (creditCardNumber / 100000000L % 100000000L)) + luhnSum((int) (creditCardNumber / 10000000000000000L));
+				// good checksum should be 0 mod 10
 				return (checksum % 10) == 0;
 			}
 		}
 	}
 
+	/**
+	 * Determine if the credit card number is valid. Works for every length up to
+	 * 19 digits, including those too large for a long.
+	 * 
+	 * @param creditCardNumber
+	 *          number on card.
+	 * 
+	 * @return true if card number is good.
+	 */
+	public static boolean isValid(Pan creditCardNumber) {
+		return creditCardNumber.isLuhnValid() && !matchCardType(creditCardNumber).isError();
+	}
+
+	/**
+	 * Determine if the credit card number is valid, working directly on the
+	 * characters of the number. Spaces and dashes are skipped; any other
+	 * non-digit makes the number invalid. Nothing is allocated.
+	 * 
+	 * @param creditCardNumber
+	 *          number on card, possibly with separators, e.g. an Editable.
+	 * 
+	 * @return true if card number is good.
+	 */
+	public static boolean isValid(CharSequence creditCardNumber) {
+		return isValid(creditCardNumber, 0, creditCardNumber.length());
+	}
+
+	/**
+	 * @see #isValid(CharSequence)
+	 */
+	public static boolean isValid(CharSequence creditCardNumber, int offset, int length) {
+		return isValid(snapshot.get(), creditCardNumber, offset, length);
+	}
+
+	/**
+	 * Determine if the credit card number is valid against a given snapshot,
+	 * e.g. one from getSnapshot whose version is to be recorded with the result.
+	 * 
+	 * @see #isValid(CharSequence)
+	 */
+	public static boolean isValid(RangeSnapshot snapshot, CharSequence creditCardNumber, int offset, int length) {
+		CardPrefixAutomaton automaton = snapshot.getPrefixAutomaton();
+		return isValid(automaton, scan(automaton, creditCardNumber, offset, length));
+	}
+
+	/**
+	 * @see #isValid(CharSequence)
+	 */
+	public static boolean isValid(char[] creditCardNumber, int offset, int length) {
+		return isValid(snapshot.get(), creditCardNumber, offset, length);
+	}
+
+	/**
+	 * @see #isValid(RangeSnapshot, CharSequence, int, int)
+	 */
+	public static boolean isValid(RangeSnapshot snapshot, char[] creditCardNumber, int offset, int length) {
+		CardPrefixAutomaton automaton = snapshot.getPrefixAutomaton();
+		return isValid(automaton, scan(automaton, creditCardNumber, offset, length));
+	}
+
+	/**
+	 * @param creditCardNumber
+	 *          ASCII encoded number on card.
+	 * @see #isValid(CharSequence)
+	 */
+	public static boolean isValid(byte[] creditCardNumber, int offset, int length) {
+		return isValid(snapshot.get(), creditCardNumber, offset, length);
+	}
+
+	/**
+	 * @param creditCardNumber
+	 *          ASCII encoded number on card.
+	 * @see #isValid(RangeSnapshot, CharSequence, int, int)
+	 */
+	public static boolean isValid(RangeSnapshot snapshot, byte[] creditCardNumber, int offset, int length) {
+		CardPrefixAutomaton automaton = snapshot.getPrefixAutomaton();
+		if (length == 16) {
+			long high = loadAscii8(creditCardNumber, offset);
+			long low = loadAscii8(creditCardNumber, offset + 8);
+			if (isAsciiDigits8(high) && isAsciiDigits8(low)) {
+				// fast path for the common plain 16 digit number
+				high -= ASCII_ZEROS;
+				low -= ASCII_ZEROS;
+				if (luhnSum16(high, low) % 10 != 0) {
+					return false;
+				}
+				int state = walk8(automaton, walk8(automaton, CardPrefixAutomaton.START, high), low);
+				return !automaton.cardType(state, 16).isError();
+			}
+		}
+		return isValid(automaton, scan(automaton, creditCardNumber, offset, length));
+	}
+
 	public static CardType getCardType(String number) {
-		number = numericOnlyString(number);
-		if (number.toString().length() < 2)
-			return CardType.UNKNOWN_CARD;
-		String firstChars = number.toString().substring(0, 2);
-		int range = Integer.parseInt(firstChars);
-		if (range >= 40 && range <= 49) {
-			return CardType.VISA;
-		} else if (range >= 50 && range <= 59) {
-			return CardType.MASTERCARD;
-		} else if (range == 34 || range == 37) {
-			return CardType.AMERICAN_EXPRESS;
-		} else if (range == 60 || range == 62 || range == 64 || range == 65) {
-			return CardType.DISCOVER;
-		} else if (range == 35) {
-			return CardType.JCB;
-		} else if (range == 30 || range == 36 || range == 38 || range == 39) {
-			return CardType.DINERS_CLUB;
-		} else {
-			return CardType.UNKNOWN_CARD;
+		return getCardType((CharSequence) number);
+	}
+
+	/**
+	 * Guess the vendor while the number is still being typed, from the digits so
+	 * far. Non-digits are ignored. Uses the same prefix automaton as validation,
+	 * so a vendor shown while typing is one the finished number can match.
+	 * 
+	 * @param number
+	 *          partial or complete number on card.
+	 * 
+	 * @return vendor, or UNKNOWN_CARD until the digits so far settle it.
+	 */
+	public static CardType getCardType(CharSequence number) {
+		CardPrefixAutomaton automaton = getPrefixAutomaton();
+		int state = CardPrefixAutomaton.START;
+		for (int i = 0, n = number.length(); i < n && state != CardPrefixAutomaton.DEAD; i++) {
+			char c = number.charAt(i);
+			if ('0' <= c && c <= '9') {
+				state = automaton.next(state, c - '0');
+			}
+		}
+		return automaton.network(state);
+	}
+
+	/**
+	 * @return the prefix automaton compiled from the current ranges, which
+	 *         callers can feed a digit at a time. Compiled when the ranges are
+	 *         published.
+	 */
+	public static CardPrefixAutomaton getPrefixAutomaton() {
+		return snapshot.get().getPrefixAutomaton();
+	}
+
+	/**
+	 * @return the table of legal card ranges matchCardType currently searches.
+	 *         It never changes, so a caller can validate a batch against it and
+	 *         report its getVersion as the version that served every result.
+	 */
+	public static RangeTable getRanges() {
+		return snapshot.get().getRanges();
+	}
+
+	/**
+	 * @return the current ranges with the automaton and BIN tables built from
+	 *         them, for callers validating text that want to report the version
+	 *         that served every result.
+	 */
+	public static RangeSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * Atomically replace the table of legal card ranges, e.g. with fresh IIN
+	 * data read by RangeTableFile. The prefix automaton is built here, before the
+	 * swap, so no validation pays for it; the BIN tables are built by the first
+	 * matchBin6 or matchBin8 call on the new ranges. Lookups already running
+	 * finish on the table they started with; later ones see the new table.
+	 * Nothing blocks.
+	 * 
+	 * @param table
+	 *          the new ranges.
+	 * 
+	 * @return the table replaced.
+	 */
+	public static RangeTable publishRanges(RangeTable table) {
+		if (table == null) {
+			throw new NullPointerException("table");
 		}
+		return snapshot.getAndSet(new RangeSnapshot(table)).getRanges();
 	}
 
 	/**
-	 * Finds a matching range in the ranges array for a given creditCardNumber.
+	 * Replace the table of legal card ranges only if it is still expected, so
+	 * two reloaders cannot undo each other.
+	 * 
+	 * @return true if table was published.
+	 */
+	public static boolean publishRanges(RangeTable expected, RangeTable table) {
+		if (table == null) {
+			throw new NullPointerException("table");
+		}
+		RangeSnapshot next = null;
+		while (true) {
+			RangeSnapshot current = snapshot.get();
+			if (current.getRanges() != expected) {
+				return false;
+			}
+			if (next == null) {
+				next = new RangeSnapshot(table);
+			}
+			if (snapshot.compareAndSet(current, next)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Finds a matching range in the ranges table for a given creditCardNumber.
 	 * 
 	 * @param creditCardNumber
 	 *          number on card.
@@ -151,25 +367,124 @@ public final class ValidateCreditCard {
 	 *         failure.
 	 */
 	public static CardType matchCardType(long creditCardNumber) {
+		return matchCardType(snapshot.get().getRanges(), creditCardNumber);
+	}
+
+	/**
+	 * Finds a matching range in a given range table.
+	 * 
+	 * @see #matchCardType(long)
+	 * @see #isValid(RangeTable, long)
+	 */
+	public static CardType matchCardType(RangeTable ranges, long creditCardNumber) {
 		if (creditCardNumber < 1000000000000L) {
 			return CardType.NOT_ENOUGH_DIGITS;
 		}
-		if (creditCardNumber > 9999999999999999L) {
-			return CardType.TOO_MANY_DIGITS;
+		// every positive long has at most 19 digits, so none is too long
+		return ranges.matchCardType(creditCardNumber);
+	}// end matchVendor
+
+	/**
+	 * Finds the vendor for a six digit BIN, the leading digits of a card number,
+	 * with a single read from a direct-indexed table. The table takes about a
+	 * megabyte and is built by the first call after the ranges are published, so
+	 * apps that never call this do not pay for it. Unlike matchCardType this
+	 * cannot check the length of the number.
+	 * 
+	 * @param bin
+	 *          first six digits of the card number, 0 to 999999.
+	 * 
+	 * @return vendor, or UNKNOWN_CARD if no range starts with the BIN.
+	 */
+	public static CardType matchBin6(int bin) {
+		return snapshot.get().getSixDigitBins().lookup(bin);
+	}
+
+	/**
+	 * Finds the vendor for an eight digit BIN with two table reads.
+	 * 
+	 * @param bin
+	 *          first eight digits of the card number, 0 to 99999999.
+	 * 
+	 * @return vendor, or UNKNOWN_CARD if no range starts with the BIN.
+	 * @see #matchBin6(int)
+	 */
+	public static CardType matchBin8(int bin) {
+		return snapshot.get().getEightDigitBins().lookup(bin);
+	}
+
+	/**
+	 * Finds the vendor for a card number of any length up to 19 digits,
+	 * including those too large for a long.
+	 * 
+	 * @param creditCardNumber
+	 *          number on card.
+	 * 
+	 * @return vendor, or NOT_ENOUGH_DIGITS or UNKNOWN_CARD on failure.
+	 */
+	public static CardType matchCardType(Pan creditCardNumber) {
+		int length = creditCardNumber.length();
+		if (length < MIN_DIGITS) {
+			return CardType.NOT_ENOUGH_DIGITS;
 		}
-		// check the cached index first, where we last found a number.
-		if (ranges[cachedLastFind].low <= creditCardNumber && creditCardNumber <= ranges[cachedLastFind].high) {
-			return ranges[cachedLastFind].cardType;
+		CardPrefixAutomaton automaton = getPrefixAutomaton();
+		int state = CardPrefixAutomaton.START;
+		for (int i = 0; i < length; i++) {
+			state = automaton.next(state, creditCardNumber.digitAt(i));
 		}
-		for (int i = 0; i < ranges.length; i++) {
-			if (ranges[i].low <= creditCardNumber && creditCardNumber <= ranges[i].high) {
-				// we have a match
-				cachedLastFind = i;
-				return ranges[i].cardType;
-			}
-		}// end for
-		return CardType.UNKNOWN_CARD;
-	}// end matchVendor
+		return automaton.cardType(state, length);
+	}
+
+	/**
+	 * Finds the vendor for a credit card number given as characters. Spaces and
+	 * dashes are skipped; nothing is allocated.
+	 * 
+	 * @param creditCardNumber
+	 *          number on card, possibly with separators.
+	 * 
+	 * @return vendor, or NOT_ENOUGH_DIGITS, TOO_MANY_DIGITS or UNKNOWN_CARD on
+	 *         failure.
+	 */
+	public static CardType matchCardType(CharSequence creditCardNumber) {
+		return matchCardType(creditCardNumber, 0, creditCardNumber.length());
+	}
+
+	/**
+	 * @see #matchCardType(CharSequence)
+	 */
+	public static CardType matchCardType(CharSequence creditCardNumber, int offset, int length) {
+		CardPrefixAutomaton automaton = getPrefixAutomaton();
+		return cardTypeOf(automaton, scan(automaton, creditCardNumber, offset, length));
+	}
+
+	/**
+	 * @see #matchCardType(CharSequence)
+	 */
+	public static CardType matchCardType(char[] creditCardNumber, int offset, int length) {
+		CardPrefixAutomaton automaton = getPrefixAutomaton();
+		return cardTypeOf(automaton, scan(automaton, creditCardNumber, offset, length));
+	}
+
+	/**
+	 * @param creditCardNumber
+	 *          ASCII encoded number on card.
+	 * @see #matchCardType(CharSequence)
+	 */
+	public static CardType matchCardType(byte[] creditCardNumber, int offset, int length) {
+		CardPrefixAutomaton automaton = getPrefixAutomaton();
+		return cardTypeOf(automaton, scan(automaton, creditCardNumber, offset, length));
+	}
+
+	/**
+	 * @param digit
+	 *          0 to 9, in a doubled Luhn place.
+	 * 
+	 * @return what it adds to the Luhn sum: twice the digit, with the two digits
+	 *         of that added up.
+	 */
+	public static int luhnDoubled(int digit) {
+		return DOUBLED[digit];
+	}
 
 	/**
 	 * convert a String to a long. The routine is very forgiving. It ignores
@@ -203,14 +518,27 @@ public final class ValidateCreditCard {
 		return Long.parseLong(numStr);
 	}// end parseDirtyLong
 
-    public static String numericOnlyString(String string) {
-        return string.replaceAll("[\\D]", "");
-    }
+	public static String numericOnlyString(String string) {
+		StringBuilder b = null;
+		for (int i = 0, n = string.length(); i < n; i++) {
+			char c = string.charAt(i);
+			if ('0' <= c && c <= '9') {
+				if (b != null) {
+					b.append(c);
+				}
+			} else if (b == null) {
+				// first junk char, copy the clean prefix
+				b = new StringBuilder(n);
+				b.append(string, 0, i);
+			}
+		}// end for
+		return b == null ? string : b.toString();
+	}
 
 	// From http://www.icverify.com/
 	// Vendor Prefix len checkdigit
 	// MASTERCARD 51-55 16 mod 10
-	// VISA 4 13, 16 mod 10
+	// VISA 4 13, 16, 19 mod 10
 	// AMEX 34,37 15 mod 10
 	// Diners Club/
 	// Carte Blanche
@@ -225,80 +553,281 @@ public final class ValidateCreditCard {
 	// 1800 15 mod 10
 
 	/**
-	 * Convert a creditCardNumber as long to a formatted String. Currently it
-	 * breaks 16-digit numbers into groups of 4.
+	 * Convert a creditCardNumber as long to a formatted String, grouped as its
+	 * vendor prints it, e.g. 16-digit numbers in groups of 4 and Amex 4-6-5.
 	 * 
 	 * @param creditCardNumber
 	 *          number on card.
 	 * 
 	 * @return String representation of the credit card number.
+	 * @see CardNumberFormatter
 	 */
 	public static String toPrettyString(long creditCardNumber) {
-		String plain = Long.toString(creditCardNumber);
-		// int i = findMatchingRange(creditCardNumber);
-		int length = plain.length();
-		switch (length) {
-		case 12:
-			// 12 pattern 3-3-3-3
-			return plain.substring(0, 3) + ' ' + plain.substring(3, 6) + ' ' + plain.substring(6, 9) + ' ' + plain.substring(9, 12);
-		case 13:
-			// 13 pattern 4-3-3-3
-			return plain.substring(0, 4) + ' ' + plain.substring(4, 7) + ' ' + plain.substring(7, 10) + ' ' + plain.substring(10, 13);
-		case 14:
-			// 14 pattern 2-4-4-4
-			return plain.substring(0, 2) + ' ' + plain.substring(2, 6) + ' ' + plain.substring(6, 10) + ' ' + plain.substring(10, 14);
-		case 15:
-			// 15 pattern 3-4-4-4
-			return plain.substring(0, 3) + ' ' + plain.substring(3, 7) + ' ' + plain.substring(7, 11) + ' ' + plain.substring(11, 15);
-		case 16:
-			// 16 pattern 4-4-4-4
-			return plain.substring(0, 4) + ' ' + plain.substring(4, 8) + ' ' + plain.substring(8, 12) + ' ' + plain.substring(12, 16);
-		case 17:
-			// 17 pattern 1-4-4-4-4
-			return plain.substring(0, 1) + ' ' + plain.substring(1, 5) + ' ' + plain.substring(5, 9) + ' ' + plain.substring(9, 13) + ' '
-					+ plain.substring(13, 17);
-		default:
-			// 0..11, 18+ digits long
+		if (creditCardNumber < 100000000000L) {
+			// 0..11 digits long
 			// plain
-			return plain;
-		}// end switch
+			return Long.toString(creditCardNumber);
+		}
+		char[] pretty = new char[2 * CardPrefixAutomaton.MAX_LENGTH];
+		int length = CardNumberFormatter.format(Pan.valueOf(creditCardNumber), ' ', pretty, 0);
+		return new String(pretty, 0, length);
 	}// end toPrettyString
 
 	// -------------------------- STATIC METHODS --------------------------
 
-	static {
-		// now that all enum constants defined
-		buildRanges();
+	/**
+	 * read the compiled range table packaged with the library, falling back on
+	 * the built in ranges if it is missing or unreadable.
+	 *
+	 * On Android the resource is found by a lookup in the APK's zip directory,
+	 * done once, in this class's initializer, on whichever thread first touches
+	 * it. Apps that mind that cost on the main thread can touch the class early
+	 * from a background thread, or ship their own table as an asset, read it
+	 * with RangeTableFile.read(ByteBuffer) and publishRanges it.
+	 */
+	private static RangeTable loadRanges() {
+		InputStream in = ValidateCreditCard.class.getResourceAsStream(RANGES_RESOURCE);
+		if (in == null) {
+			return forPlatform(buildRanges());
+		}
+		try {
+			return forPlatform(RangeTableFile.read(in));
+		} catch (IOException e) {
+			if (DEBUGGING) {
+				out.println("falling back on built in ranges: " + e);
+			}
+			return forPlatform(buildRanges());
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// nothing more to read
+			}
+		}
+	}
+
+	/**
+	 * On Android, where Dalvik and ART both give this VM name, the ranges are
+	 * kept packed: entry is checked by the prefix automaton, so the table itself
+	 * is only searched by matchCardType(long) and is not worth its heap. Batch
+	 * work on a server JVM keeps the faster sorted table.
+	 */
+	private static RangeTable forPlatform(RangeTable ranges) {
+		String vm = System.getProperty("java.vm.name");
+		return vm != null && vm.startsWith("Dalvik") ? new PackedRangeTable(ranges) : ranges;
 	}
 
 	/**
-	 * build table of which ranges of credit card number belong to which vendor
+	 * build table of which ranges of credit card number belong to which vendor.
+	 * Keep in step with src/main/iin/iin_ranges.csv.
 	 */
-	private static void buildRanges() {
+	private static RangeTable buildRanges() {
 		// careful, no lead zeros allowed
 		// low high len vendor
-		ranges = new LCR[] { new LCR(4000000000000L, 4999999999999L/* 13 */, CardType.VISA),
+		return SortedRangeTable.fromRanges(0, new LCR[] { new LCR(4000000000000L, 4999999999999L/* 13 */, CardType.VISA),
 				new LCR(340000000000000L, 349999999999999L/* 15 */, CardType.AMERICAN_EXPRESS),
 				new LCR(370000000000000L, 379999999999999L/* 15 */, CardType.AMERICAN_EXPRESS),
 				new LCR(4000000000000000L, 4999999999999999L/* 16 */, CardType.VISA),
+				new LCR(4000000000000000000L, 4999999999999999999L/* 19 */, CardType.VISA),
 				new LCR(5100000000000000L, 5599999999999999L/* 16 */, CardType.MASTERCARD),
-				new LCR(6011000000000000L, 6011999999999999L/* 16 */, CardType.DISCOVER) };
+				new LCR(6011000000000000L, 6011999999999999L/* 16 */, CardType.DISCOVER),
+				new LCR(30000000000000L, 30599999999999L/* 14 */, CardType.DINERS_CLUB),
+				new LCR(36000000000000L, 36999999999999L/* 14 */, CardType.DINERS_CLUB),
+				new LCR(38000000000000L, 39999999999999L/* 14 */, CardType.DINERS_CLUB),
+				new LCR(2221000000000000L, 2720999999999999L/* 16 */, CardType.MASTERCARD),
+				new LCR(3528000000000000L, 3589999999999999L/* 16 */, CardType.JCB),
+				new LCR(6221260000000000L, 6229259999999999L/* 16 */, CardType.DISCOVER),
+				new LCR(6440000000000000L, 6599999999999999L/* 16 */, CardType.DISCOVER) });
 	}
 
 	/**
-	 * used in computing checksums, doubles and adds resulting digits.
+	 * Feeds the digits of a card number through the prefix automaton and the
+	 * Luhn sum in one pass, skipping spaces and dashes.
 	 * 
-	 * @param digit
-	 *          the digit to be doubled, and digit summed.
+	 * @return the automaton state, digit count and checksum packed by pack, or
+	 *         MALFORMED if a char other than a digit or separator was seen.
+	 */
+	static long scan(CardPrefixAutomaton automaton, CharSequence s, int offset, int length) {
+		int state = CardPrefixAutomaton.START;
+		int digits = 0;
+		// Luhn sums as if the last digit so far were the check digit, or the
+		// doubled digit left of it; each new digit swaps their roles
+		int undoubled = 0;
+		int doubled = 0;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			char c = s.charAt(i);
+			if ('0' <= c && c <= '9') {
+				int digit = c - '0';
+				int sum = doubled + digit;
+				doubled = undoubled + DOUBLED[digit];
+				undoubled = sum;
+				state = automaton.next(state, digit);
+				digits++;
+			} else if (c != ' ' && c != '-') {
+				return MALFORMED;
+			}
+		}
+		return pack(state, digits, undoubled);
+	}
+
+	/**
+	 * @see #scan(CardPrefixAutomaton, CharSequence, int, int)
+	 */
+	private static long scan(CardPrefixAutomaton automaton, char[] s, int offset, int length) {
+		int state = CardPrefixAutomaton.START;
+		int digits = 0;
+		int undoubled = 0;
+		int doubled = 0;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			char c = s[i];
+			if ('0' <= c && c <= '9') {
+				int digit = c - '0';
+				int sum = doubled + digit;
+				doubled = undoubled + DOUBLED[digit];
+				undoubled = sum;
+				state = automaton.next(state, digit);
+				digits++;
+			} else if (c != ' ' && c != '-') {
+				return MALFORMED;
+			}
+		}
+		return pack(state, digits, undoubled);
+	}
+
+	/**
+	 * @see #scan(CardPrefixAutomaton, CharSequence, int, int)
+	 */
+	private static long scan(CardPrefixAutomaton automaton, byte[] s, int offset, int length) {
+		int state = CardPrefixAutomaton.START;
+		int digits = 0;
+		int undoubled = 0;
+		int doubled = 0;
+		for (int i = offset, end = offset + length; i < end; i++) {
+			int c = s[i];
+			if ('0' <= c && c <= '9') {
+				int digit = c - '0';
+				int sum = doubled + digit;
+				doubled = undoubled + DOUBLED[digit];
+				undoubled = sum;
+				state = automaton.next(state, digit);
+				digits++;
+			} else if (c != ' ' && c != '-') {
+				return MALFORMED;
+			}
+		}
+		return pack(state, digits, undoubled);
+	}
+
+	/**
+	 * packs a scan result: automaton state in the top half, digit count (capped
+	 * at 255) in bits 8 to 15, checksum mod 10 in the bottom four bits.
+	 */
+	private static long pack(int state, int digits, int checksum) {
+		return (long) state << 32 | Math.min(digits, 255) << 8 | checksum % 10;
+	}
+
+	static CardType cardTypeOf(CardPrefixAutomaton automaton, long scan) {
+		if ((scan & MALFORMED) != 0) {
+			return CardType.NOT_ENOUGH_DIGITS;
+		}
+		int digits = (int) (scan >>> 8) & 0xFF;
+		if (digits < MIN_DIGITS) {
+			return CardType.NOT_ENOUGH_DIGITS;
+		}
+		if (digits > MAX_DIGITS) {
+			return CardType.TOO_MANY_DIGITS;
+		}
+		return automaton.cardType((int) (scan >>> 32), digits);
+	}
+
+	private static boolean isValid(CardPrefixAutomaton automaton, long scan) {
+		return isLuhnValid(scan) && !cardTypeOf(automaton, scan).isError();
+	}
+
+	static boolean isLuhnValid(long scan) {
+		// good checksum should be 0 mod 10
+		return (scan & (0xF | MALFORMED)) == 0;
+	}
+
+	static boolean isMalformed(long scan) {
+		return (scan & MALFORMED) != 0;
+	}
+
+	/**
+	 * @return vendor of the digits scanned, as getCardType would guess it.
+	 */
+	static CardType networkOf(CardPrefixAutomaton automaton, long scan) {
+		return isMalformed(scan) ? CardType.UNKNOWN_CARD : automaton.network((int) (scan >>> 32));
+	}
+
+	/**
+	 * feeds 8 digits held one per byte, big-endian, through the automaton.
+	 */
+	private static int walk8(CardPrefixAutomaton automaton, int state, long digits) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			state = automaton.next(state, (int) (digits >>> shift) & 0xFF);
+		}
+		return state;
+	}
+
+	/**
+	 * Luhn sum of up to 9 digits, with the rightmost digit in an undoubled
+	 * place.
+	 * 
+	 * @param number
+	 *          non-negative digits to sum.
 	 * 
-	 * @return // 0->0 1->2 2->4 3->6 4->8 5->1 6->3 7->5 8->7 9->9
+	 * @return checksum contribution, only meaningful mod 10.
 	 */
-	private static int z(int digit) {
-		if (digit == 0) {
-			return 0;
-		} else {
-			return (digit * 2 - 1) % 9 + 1;
+	private static int luhnSum(int number) {
+		int checksum = 0;
+		while (number != 0) {
+			// even position (0-based from right), just add digit
+			checksum += number % 10;
+			number /= 10;
+			// odd position, double and add
+			checksum += DOUBLED[number % 10];
+			number /= 10;
 		}
+		return checksum;
+	}
+
+	/**
+	 * Luhn sum of 16 digits held one per byte, big-endian, in two words. Every
+	 * digit is added once, the doubled places (even bytes from the left) are
+	 * added a second time, and 9 is taken off each doubled digit over 4 to fold
+	 * its two decimal digits together. No branches and no table.
+	 */
+	private static int luhnSum16(long high, long low) {
+		long doubledHigh = high & DOUBLED_PLACES;
+		long doubledLow = low & DOUBLED_PLACES;
+		// 0x7B + digit sets the top bit of the byte exactly when digit > 4
+		int carries = Long.bitCount((doubledHigh + ADD_123) & TOP_BITS) + Long.bitCount((doubledLow + ADD_123) & TOP_BITS);
+		// bytes are at most 18, so the byte sums below cannot carry
+		return sumBytes(high + doubledHigh) + sumBytes(low + doubledLow) - 9 * carries;
+	}
+
+	/**
+	 * horizontal sum of the eight bytes of a word, provided it fits in a byte.
+	 */
+	private static int sumBytes(long word) {
+		return (int) ((word * 0x0101010101010101L) >>> 56);
+	}
+
+	/**
+	 * true if every byte of the word is an ASCII digit, i.e. has high nibble 3
+	 * and low nibble no more than 9.
+	 */
+	private static boolean isAsciiDigits8(long word) {
+		return (word & 0xF0F0F0F0F0F0F0F0L) == ASCII_ZEROS && (((word & 0x0F0F0F0F0F0F0F0FL) + 0x0606060606060606L) & 0xF0F0F0F0F0F0F0F0L) == 0;
+	}
+
+	/**
+	 * reads 8 bytes as a big-endian long, so the first char is the top byte.
+	 */
+	private static long loadAscii8(byte[] b, int i) {
+		return (b[i] & 0xFFL) << 56 | (b[i + 1] & 0xFFL) << 48 | (b[i + 2] & 0xFFL) << 40 | (b[i + 3] & 0xFFL) << 32 | (b[i + 4] & 0xFFL) << 24
+				| (b[i + 5] & 0xFFL) << 16 | (b[i + 6] & 0xFFL) << 8 | (b[i + 7] & 0xFFL);
 	}
 
 	// --------------------------- main() method ---------------------------
@@ -327,64 +856,43 @@ public final class ValidateCreditCard {
 			out.println(isValid(5588888888888838L));// true, MC
 			out.println(isValid(6011222233334444L));// true, Discover
 			out.println(parseDirtyLong("123,444 999=z/99"));// 12344499999
+			out.println(isValid("4888 8888 8888 8838"));// true, Visa
+			out.println(isValid("4888-8888-8888-8838"));// true, Visa
+			out.println(isValid("4888 8888 8888 883x"));// false
+			out.println(matchCardType("6011 2222 3333 4444"));// Discover
+			out.println(matchCardType("6011 2222 3333 4444 0000"));// too many digits
+			out.println(getCardType("4"));// Visa
+			out.println(getCardType("3"));// unknown vendor, Amex, JCB or Diners
+			out.println(getCardType("35"));// JCB
+			out.println(isValid("3530 1113 3330 0000"));// true, JCB
+			out.println(isValid("3056 9309 0259 04"));// true, Diners
 			out.println(toPrettyString(0));// 0
 			out.println(toPrettyString(6011222233334444L));// 6011 2222 3333 4444
 			out.println(toPrettyString(6010222233334444L));// 6010 2222 3333 4444
-			out.println(toPrettyString(4000000000000L));// 4000 000 000 000
-			out.println(toPrettyString(4000000000006L));// 4000 000 000 006
-			out.println(toPrettyString(4000000000009L));// 4000 000 000 009
+			out.println(toPrettyString(4000000000000L));// 4000 0000 00000
+			out.println(toPrettyString(4000000000006L));// 4000 0000 00006
+			out.println(toPrettyString(4000000000009L));// 4000 0000 00009
 			out.println(toPrettyString(3123456789012341L));// 3123 4567 8901 2341
 			out.println(toPrettyString(999999999990L));// 999 999 999 990
-			out.println(toPrettyString(4000000000006L));// 4000 000 000 006
-			out.println(toPrettyString(30000000000004L));// 30 0000 0000 0004
+			out.println(toPrettyString(4000000000006L));// 4000 0000 00006
+			out.println(toPrettyString(30000000000004L));// 3000 000000 0004
 			out.println(toPrettyString(180000000000002L));// 180 0000 0000 0002
 			out.println(toPrettyString(3000000000000004L));// 3000 0000 0000 0004
 			out.println(toPrettyString(3000000000000005L));// 3000 0000 0000 0005
 			out.println(toPrettyString(13000000000000005L));// 1 3000 0000 0000 0005
+			out.println(matchBin6(601122));// Discover
+			out.println(matchBin6(601022));// unknown vendor
+			out.println(matchBin8(37888888));// Amex
+			// a range running from 13 into 16 digit numbers fills its BINs at
+			// every length rather than indexing past the table
+			RangeTable spanning = SortedRangeTable.fromRanges(0, new LCR[] { new LCR(4000000000000L, 4999999999999999L,
+					CardType.VISA) });
+			out.println(BinTable.sixDigit(spanning).lookup(499999));// Visa
+			out.println(BinTable.eightDigit(spanning).lookup(40000000));// Visa
+			out.println(BinTable.eightDigit(spanning).lookup(50000000));// unknown vendor
 			out.println(CardType.VISA.getName());// Visa
 			out.println(CardType.UNKNOWN_CARD.getName());// Error: unknown credit card
 																										// company
 		}// end if debugging
 	}// end main
 }
-
-/**
- * Describes a single Legal Card Range
- */
-final class LCR {
-	// ------------------------------ FIELDS ------------------------------
-
-	/**
-	 * enumeration credit card service
-	 */
-	public final CardType cardType;
-
-	/**
-	 * low and high bounds on range covered by this vendor
-	 */
-	public final long high;
-
-	/**
-	 * low bounds on range covered by this vendor
-	 */
-	public final long low;
-
-	// -------------------------- PUBLIC INSTANCE METHODS
-	// --------------------------
-
-	/**
-	 * public constructor
-	 * 
-	 * @param low
-	 *          lowest credit card number in range.
-	 * @param high
-	 *          highest credit card number in range
-	 * @param cardType
-	 *          enum constant for vendor
-	 */
-	public LCR(long low, long high, CardType cardType) {
-		this.low = low;
-		this.high = high;
-		this.cardType = cardType;
-	}// end public constructor
-}
@@ -13,6 +13,9 @@ import android.view.inputmethod.InputConnection;
 import android.view.inputmethod.InputConnectionWrapper;
 import android.widget.EditText;
 
+import me.brendanweinstein.CardNumberState;
+import me.brendanweinstein.CardType;
+import me.brendanweinstein.PanMasker;
 import me.brendanweinstein.views.FieldHolder.CardEntryListener;
 
 public class CardNumEditText extends EditText {
@@ -23,6 +26,17 @@ public class CardNumEditText extends EditText {
 
 	private int mMaxCardLength = FieldHolder.NON_AMEX_CARD_LENGTH;
 
+	/**
+	 * digits of the field, kept up to date edit by edit.
+	 */
+	private final CardNumberState mCardNumber = new CardNumberState();
+
+	/**
+	 * digits the pending edit replaces, from beforeTextChanged.
+	 */
+	private int mEditFrom;
+	private int mEditTo;
+
 	public CardNumEditText(Context context) {
 		super(context);
 		setup();
@@ -34,6 +48,9 @@ public class CardNumEditText extends EditText {
 	}
 
 	private void setup() {
+		// text set before the watcher was added, e.g. android:text in XML
+		CharSequence text = getText();
+		mCardNumber.replace(0, 0, text, 0, text.length());
 		addTextChangedListener(mCardNumberTextWatcher);
 	}
 
@@ -45,6 +62,28 @@ public class CardNumEditText extends EditText {
 		return mMaxCardLength;
 	}
 
+	/**
+	 * @return true if the digits entered make a valid card number. Nothing is
+	 *         scanned; the answer is kept current as the text changes.
+	 */
+	public boolean isCardNumberValid() {
+		return mCardNumber.isValid();
+	}
+
+	/**
+	 * @return vendor of the digits entered so far.
+	 */
+	public CardType getCardType() {
+		return mCardNumber.getCardType();
+	}
+
+	/**
+	 * @return vendor of the complete number, or an error CardType.
+	 */
+	public CardType matchCardType() {
+		return mCardNumber.matchCardType();
+	}
+
 	public void setMaxCardLength(int maxCardLength) {
 		mMaxCardLength = maxCardLength;
 		InputFilter[] filters = new InputFilter[1];
@@ -86,7 +125,7 @@ public class CardNumEditText extends EditText {
 			}
 			if (mLastEvent == TextEvent.KEY_PRESS) {
 				int curPos = getSelectionEnd();
-				formatText(getText().toString().replaceAll(" ", ""));
+				formatText(mCardNumber);
 				positionCursor(curPos);
 			}
 			if(mLastEvent != TextEvent.KEY_PRESS) {
@@ -94,7 +133,7 @@ public class CardNumEditText extends EditText {
 			}
 		}
 		
-		private void formatText(String strippedStr) {
+		private void formatText(CharSequence strippedStr) {
 			if(mMaxCardLength == FieldHolder.NON_AMEX_CARD_LENGTH) {
 				format16Text(strippedStr);
 			} else if(mMaxCardLength == FieldHolder.AMEX_CARD_LENGTH) {
@@ -121,6 +160,8 @@ public class CardNumEditText extends EditText {
 		@Override
 		public void beforeTextChanged(CharSequence s, int start, int count, int after) {
 			mPrevLength = length();
+			mEditFrom = CardNumberState.digitCount(s, 0, start);
+			mEditTo = mEditFrom + CardNumberState.digitCount(s, start, start + count);
 		}
 
 		@Override
@@ -130,13 +171,15 @@ public class CardNumEditText extends EditText {
 			} else {
 				mTextAdded = false;
 			}
+			// a reformat rewrites the same digits, which costs only a compare
+			mCardNumber.replace(mEditFrom, mEditTo, s, start, start + count);
 		}
 	};
 
 	/*
 	 * 4-4-4-4
 	 */
-	private void format16Text(String strippedStr) {
+	private void format16Text(CharSequence strippedStr) {
 		int len = strippedStr.length();
 		StringBuilder sb = new StringBuilder();
 		for (int lh = 1; lh <= len; lh++) {
@@ -152,7 +195,7 @@ public class CardNumEditText extends EditText {
 	/*
 	 * 4-6-5
 	 */
-	private void format15Text(String strippedStr) {
+	private void format15Text(CharSequence strippedStr) {
 		int len = strippedStr.length();
 		StringBuilder sb = new StringBuilder();
 		for(int lh=1; lh <= len; lh++) {
@@ -207,8 +250,18 @@ public class CardNumEditText extends EditText {
 	}
 
 	public String getLast4Digits() {
-		String text = getText().toString().replaceAll("\\s", "");
-		return text.substring(text.length() - 4, text.length());
+		char[] last4 = new char[4];
+		return new String(last4, 0, getLast4Digits(last4, 0));
+	}
+
+	/**
+	 * Writes the last four digits, or all of them if there are fewer, without
+	 * building any String.
+	 *
+	 * @return offset just past the last digit written.
+	 */
+	public int getLast4Digits(char[] dst, int offset) {
+		return PanMasker.writeLast4(mCardNumber, dst, offset);
 	}
 
 }
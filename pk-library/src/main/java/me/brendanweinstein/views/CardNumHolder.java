@@ -14,7 +14,6 @@ import android.widget.RelativeLayout;
 
 import com.paymentkit.R;
 
-import me.brendanweinstein.ValidateCreditCard;
 import me.brendanweinstein.util.ToastUtils;
 import me.brendanweinstein.util.ViewUtils;
 import me.brendanweinstein.views.FieldHolder.CardEntryListener;
@@ -27,6 +26,10 @@ public class CardNumHolder extends RelativeLayout {
 
 	private CardNumEditText mCardNumberEditText;
 	private InterceptEditText mLastFourDigits;
+	/**
+	 * text of mLastFourDigits, rewritten only right before each setText.
+	 */
+	private final char[] mLast4Digits = new char[4];
 	private float mLeftOffset;
 	private CardEntryListener mCardEntryListener;
 	private View mTopItem;
@@ -64,7 +67,7 @@ public class CardNumHolder extends RelativeLayout {
 			ToastUtils.showToast(getContext(), "Please enter a valid card number");
 			return false;
 		} else if (mCardNumberEditText.length() == mCardNumberEditText.getMaxCardLength()) {
-			if (ValidateCreditCard.isValid(Long.parseLong(getCardField().getText().toString().replaceAll("\\s", "")))) {
+			if (mCardNumberEditText.isCardNumberValid()) {
 				return true;
 			} else {
 				ToastUtils.showToast(getContext(), "Please enter a valid card number");
@@ -125,12 +128,12 @@ public class CardNumHolder extends RelativeLayout {
 
 	public void createOverlay() {
 		// create 4 digits
-		String str = mCardNumberEditText.getText().toString();
-		String last4Digits = str.substring(str.length() - 4, str.length());
-		mLastFourDigits.setText(last4Digits);
+		int length = mCardNumberEditText.getLast4Digits(mLast4Digits, 0);
+		mLastFourDigits.setText(mLast4Digits, 0, length);
 		Paint textPaint = mCardNumberEditText.getPaint();
-		float fullWidth = textPaint.measureText(mCardNumberEditText.getText().toString());
-		float fourDigitsWidth = textPaint.measureText(last4Digits);
+		CharSequence text = mCardNumberEditText.getText();
+		float fullWidth = textPaint.measureText(text, 0, text.length());
+		float fourDigitsWidth = textPaint.measureText(mLast4Digits, 0, length);
 		mLeftOffset = fullWidth - fourDigitsWidth;
 		ViewUtils.setMarginLeft(mLastFourDigits, (int) mLeftOffset);
 		// align digits on right
@@ -1,7 +1,5 @@
 package me.brendanweinstein.views;
 
-import java.util.Calendar;
-
 import android.content.Context;
 import android.text.Editable;
 import android.text.TextWatcher;
@@ -12,6 +10,7 @@ import android.view.inputmethod.InputConnection;
 import android.view.inputmethod.InputConnectionWrapper;
 import android.widget.EditText;
 
+import me.brendanweinstein.ExpiryValidator;
 import me.brendanweinstein.views.FieldHolder.CardEntryListener;
 
 /**
@@ -26,6 +25,8 @@ public class ExpirationEditText extends EditText {
 
 	private CardEntryListener mListener;
 
+	private ExpiryValidator mExpiryValidator = ExpiryValidator.getDefault();
+
 	public ExpirationEditText(Context context) {
 		super(context);
 		setup();
@@ -57,6 +58,18 @@ public class ExpirationEditText extends EditText {
 		mListener = listener;
 	}
 
+	public ExpiryValidator getExpiryValidator() {
+		return mExpiryValidator;
+	}
+
+	/**
+	 * @param validator
+	 *          decides which months are over, e.g. one on a fixed clock.
+	 */
+	public void setExpiryValidator(ExpiryValidator validator) {
+		mExpiryValidator = validator;
+	}
+
 	/* Expiration Input Field Text Watcher */
 	private boolean mTextAdded = true; // denotes if a character was added or
 																			// removed in last text change
@@ -69,7 +82,7 @@ public class ExpirationEditText extends EditText {
 			if (mTextAdded && length() == 1) {
 
 				// tens place of month validation
-				int tensPlace = Integer.parseInt(getText().subSequence(0, 1).toString());
+				int tensPlace = getText().charAt(0) - '0';
 				if (tensPlace > 1) {
 					setText("");
 					setSelection(length());
@@ -78,8 +91,8 @@ public class ExpirationEditText extends EditText {
 			} else if (mTextAdded && length() == 2) {
 
 				// one places of month validation
-				int tensPlace = Integer.parseInt(getText().subSequence(0, 1).toString());
-				int onesPlace = Integer.parseInt(getText().subSequence(1, 2).toString());
+				int tensPlace = getText().charAt(0) - '0';
+				int onesPlace = getText().charAt(1) - '0';
 				if ((tensPlace == 1 && onesPlace > 2) || (tensPlace == 0 && onesPlace == 0)) {
 					setText(getText().subSequence(0, 1));
 					setSelection(length());
@@ -91,11 +104,9 @@ public class ExpirationEditText extends EditText {
 			} else if (mTextAdded && length() == 4) {
 
 				// tens place of year validation
-				Integer year = Calendar.getInstance().get(Calendar.YEAR); // 2013
-				int curTensPlace = Integer.parseInt(year.toString().substring(2, 3)); // 1
-				int inputTensPlace = Integer.parseInt(Character.toString(getText().charAt(3))); // 5
+				int inputTensPlace = getText().charAt(3) - '0';
 
-				if (inputTensPlace < curTensPlace) {
+				if (!mExpiryValidator.isPossibleYearTens(inputTensPlace)) {
 					setText(getText().subSequence(0, length() - 1));
 					setSelection(length());
 				}
@@ -103,12 +114,10 @@ public class ExpirationEditText extends EditText {
 			} else if (mTextAdded && length() == 5) {
 
 				// ones place of year validation
-				Integer year = Calendar.getInstance().get(Calendar.YEAR);
-				int curMonth = Calendar.getInstance().get(Calendar.MONTH);
-				int curYear = Integer.parseInt(year.toString().substring(2, 4));
-				int inputMonth = Integer.parseInt(getText().toString().substring(0, 2));
-				int inputYear = Integer.parseInt(getText().toString().substring(3, 5));
-				if (inputYear < curYear || ((inputMonth < curMonth) && inputYear == curYear)) {
+				CharSequence text = getText();
+				int inputMonth = (text.charAt(0) - '0') * 10 + (text.charAt(1) - '0');
+				int inputYear = (text.charAt(3) - '0') * 10 + (text.charAt(4) - '0');
+				if (mExpiryValidator.isExpired(inputMonth, inputYear)) {
 					setText(getText().subSequence(0, 4));
 					setSelection(length());
 				} else {
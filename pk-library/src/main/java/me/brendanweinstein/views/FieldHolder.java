@@ -16,8 +16,9 @@ import android.widget.RelativeLayout;
 
 import com.paymentkit.R;
 
+import me.brendanweinstein.CardEnvelopeEncryptor;
 import me.brendanweinstein.CardType;
-import me.brendanweinstein.ValidateCreditCard;
+import me.brendanweinstein.CardValidation;
 import me.brendanweinstein.util.ViewUtils;
 
 /**
@@ -111,9 +112,9 @@ public class FieldHolder extends RelativeLayout {
 	}
 
 	private void validateCard() {
-		long cardNumber = Long.parseLong(mCardHolder.getCardField().getText().toString().replaceAll("\\s", ""));
-		if (ValidateCreditCard.isValid(cardNumber)) {
-			CardType cardType = ValidateCreditCard.matchCardType(cardNumber);
+		CardNumEditText cardField = mCardHolder.getCardField();
+		if (cardField.isCardNumberValid()) {
+			CardType cardType = cardField.matchCardType();
 			mCardIcon.setCardType(cardType);
 			transitionToExtraFields();
 		} else {
@@ -181,7 +182,7 @@ public class FieldHolder extends RelativeLayout {
 
 		@Override
 		public void onEdit() {
-			CardType newCardType = ValidateCreditCard.getCardType(mCardHolder.getCardField().getText().toString());
+			CardType newCardType = mCardHolder.getCardField().getCardType();
 			if (newCardType == CardType.AMERICAN_EXPRESS) {
 				mCardHolder.getCardField().setMaxCardLength(AMEX_CARD_LENGTH);
 				setCVVMaxLength(4);
@@ -189,7 +190,7 @@ public class FieldHolder extends RelativeLayout {
 				mCardHolder.getCardField().setMaxCardLength(NON_AMEX_CARD_LENGTH);
 				setCVVMaxLength(3);
 			}
-			mCardIcon.setCardType(ValidateCreditCard.getCardType(mCardHolder.getCardField().getText().toString()));
+			mCardIcon.setCardType(newCardType);
 		}
 
 		@Override
@@ -245,12 +246,28 @@ public class FieldHolder extends RelativeLayout {
 	};
 	
 	public boolean isFieldsValid() {
-		if (mExpirationEditText.getText().toString().length() != 5) {
-			return false;
-		} else if (mCVVEditText.getText().toString().length() != CVV_MAX_LENGTH) {
-			return false;
-		}
-		return true;
+		return getValidation() == CardValidation.VALID;
+	}
+
+	/**
+	 * @return CardValidation.VALID, or the CardValidation error bits for the
+	 *         number, expiry and CVV as entered.
+	 */
+	public int getValidation() {
+		int nowYymm = mExpirationEditText.getExpiryValidator().currentYymm();
+		return CardValidation.validate(mCardHolder.getCardField().getText(), mExpirationEditText.getText(), mCVVEditText.getText(),
+				nowYymm);
+	}
+
+	/**
+	 * Encrypts the number, expiry and CVV as entered, reading the fields' text
+	 * where it lies rather than through a String. Encryptors can only be made
+	 * where CardEnvelopeEncryptor.isSupported, Android API 19 and up.
+	 *
+	 * @return the envelope, for the server holding the encryptor's private key.
+	 */
+	public byte[] encryptFields(CardEnvelopeEncryptor encryptor) {
+		return encryptor.encrypt(mCardHolder.getCardField().getText(), mExpirationEditText.getText(), mCVVEditText.getText());
 	}
 
 }